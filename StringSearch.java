@@ -5,8 +5,71 @@
  * @since 2021-11-11
  */
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URI;
 import java.io.IOException;	// error handling
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
 
 
 interface Query
@@ -19,22 +82,80 @@ interface Transform
 	String transform(String str);
 }
 
-class Contains implements Query
+/**
+ * A Transform that can rewrite a line held in a reusable CharLine
+ * instead of building a new String. Returns false, leaving the line in
+ * a state the String transform can still be applied to, if it cannot
+ * handle this line in place.
+ */
+interface BufferTransform
+{
+	boolean transform(CharLine line);
+}
+
+/**
+ * A Query that can be evaluated directly against the raw bytes of an
+ * ASCII line, without decoding it to a String first.
+ */
+interface ByteQuery
+{
+	boolean matches(ByteBuffer buf, int start, int end);
+}
+
+interface LineHandler
+{
+	/**
+	 * Handles one line of input, returning false to stop reading
+	 *
+	 * @param line
+	 * @return keepReading
+	 */
+	boolean handle(String line);
+}
+
+interface ByteLineHandler
+{
+	/**
+	 * Handles one matching line given as a byte range of buf, returning
+	 * false to stop scanning
+	 *
+	 * @param buf
+	 * @param start
+	 * @param end
+	 * @param ascii
+	 * @return keepScanning
+	 */
+	boolean handle(ByteBuffer buf, int start, int end, boolean ascii);
+}
+
+class Contains implements Query, ByteQuery
 {
 	String keyword;
+	SubstringMatcher matcher;
 
 	Contains(String keyword)
 	{
 		this.keyword = keyword;
+		this.matcher = new SubstringMatcher(keyword);
 	}
 
 	public boolean matches(String str)
 	{
-		return (str.contains(this.keyword));
+		return (matcher.indexOf(str, 0) >= 0);
+	}
+
+	public boolean matches(ByteBuffer buf, int start, int end)
+	{
+		return (matcher.indexOf(buf, start, end) >= 0);
+	}
+
+	public String toString()
+	{
+		return "contains=" + QueryParser.quote(keyword);
 	}
 }
 
-class Length implements Query
+class Length implements Query, ByteQuery
 {
 	int length;
 
@@ -47,9 +168,19 @@ class Length implements Query
 	{
 		return (str.length() > length);
 	}
+
+	public boolean matches(ByteBuffer buf, int start, int end)
+	{
+		return ((end - start) > length);
+	}
+
+	public String toString()
+	{
+		return "length=" + length;
+	}
 }
 
-class GreaterThan implements Query
+class GreaterThan implements Query, ByteQuery
 {
 	int value;
 
@@ -62,9 +193,19 @@ class GreaterThan implements Query
 	{
 		return (str.length() > value);
 	}
+
+	public boolean matches(ByteBuffer buf, int start, int end)
+	{
+		return ((end - start) > value);
+	}
+
+	public String toString()
+	{
+		return "greater=" + value;
+	}
 }
 
-class LessThan implements Query
+class LessThan implements Query, ByteQuery
 {
 	int value;
 
@@ -77,39 +218,75 @@ class LessThan implements Query
 	{
 		return (str.length() < value);
 	}
+
+	public boolean matches(ByteBuffer buf, int start, int end)
+	{
+		return ((end - start) < value);
+	}
+
+	public String toString()
+	{
+		return "less=" + value;
+	}
 }
 
-class StartsWith implements Query
+class StartsWith implements Query, ByteQuery
 {
 	String keyword;
+	byte[] keywordBytes;
 
 	StartsWith(String keyword)
 	{
 		this.keyword = keyword;
+		this.keywordBytes = keyword.getBytes(StandardCharsets.UTF_8);
 	}
 
 	public boolean matches(String str)
 	{
 		return (str.startsWith(this.keyword));
 	}
+
+	public boolean matches(ByteBuffer buf, int start, int end)
+	{
+		return ((end - start) >= keywordBytes.length)
+				&& ByteLines.regionMatches(buf, start, this.keywordBytes);
+	}
+
+	public String toString()
+	{
+		return "starts=" + QueryParser.quote(keyword);
+	}
 }
 
-class EndsWith implements Query
+class EndsWith implements Query, ByteQuery
 {
 	String keyword;
+	byte[] keywordBytes;
 
 	EndsWith(String keyword)
 	{
 		this.keyword = keyword;
+		this.keywordBytes = keyword.getBytes(StandardCharsets.UTF_8);
 	}
 
 	public boolean matches(String str)
 	{
 		return (str.endsWith(this.keyword));
 	}
+
+	public boolean matches(ByteBuffer buf, int start, int end)
+	{
+		return ((end - start) >= keywordBytes.length)
+				&& ByteLines.regionMatches(buf, end - keywordBytes.length, this.keywordBytes);
+	}
+
+	public String toString()
+	{
+		return "ends=" + QueryParser.quote(keyword);
+	}
 }
 
-class Not implements Query
+class Not implements Query, ByteQuery
 {
 	Query query;
 
@@ -122,25 +299,156 @@ class Not implements Query
 	{
 		return (!(query.matches(str)));
 	}
+
+	public boolean matches(ByteBuffer buf, int start, int end)
+	{
+		return (!(ByteLines.matches(query, buf, start, end)));
+	}
+
+	public String toString()
+	{
+		return "not(" + query + ")";
+	}
 }
 
-class UpperCase implements Transform
+class And implements Query, ByteQuery
+{
+	final Query[] queries;
+	final Query[] order;
+
+	/**
+	 * Matches lines that match every one of queries, evaluating the
+	 * cheapest first and stopping at the first that fails
+	 *
+	 * @param queries
+	 */
+	And(Query[] queries)
+	{
+		this.queries = queries;
+		this.order = queries.clone();
+
+		Arrays.sort(order, Comparator.comparingDouble(QueryPlanner::cost));
+	}
+
+	public boolean matches(String str)
+	{
+		for (Query query : order)
+		{
+			if (!(query.matches(str)))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	public boolean matches(ByteBuffer buf, int start, int end)
+	{
+		return ByteLines.matchesAll(order, buf, start, end);
+	}
+
+	public String toString()
+	{
+		return QueryPlanner.join(queries);
+	}
+}
+
+class Or implements Query, ByteQuery
+{
+	final Query[] queries;
+	final Query[] order;
+
+	/**
+	 * Matches lines that match any one of queries, evaluating the
+	 * cheapest first and stopping at the first that succeeds
+	 *
+	 * @param queries
+	 */
+	Or(Query[] queries)
+	{
+		this.queries = queries;
+		this.order = queries.clone();
+
+		Arrays.sort(order, Comparator.comparingDouble(QueryPlanner::cost));
+	}
+
+	public boolean matches(String str)
+	{
+		for (Query query : order)
+		{
+			if (query.matches(str))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	public boolean matches(ByteBuffer buf, int start, int end)
+	{
+		for (Query query : order)
+		{
+			if (ByteLines.matches(query, buf, start, end))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	public String toString()
+	{
+		StringJoiner joined = new StringJoiner("|");
+
+		for (Query query : queries)
+		{
+			joined.add(String.valueOf(query));
+		}
+
+		return joined.toString();
+	}
+}
+
+class UpperCase implements Transform, BufferTransform
 {
 	public String transform(String str)
 	{
 		return str.toUpperCase();
 	}
+
+	public boolean transform(CharLine line)
+	{
+		return line.mapAscii(true);
+	}
+
+	public String toString()
+	{
+		return "upper";
+	}
 }
 
-class LowerCase implements Transform
+class LowerCase implements Transform, BufferTransform
 {
 	public String transform(String str)
 	{
 		return str.toLowerCase();
 	}
+
+	public boolean transform(CharLine line)
+	{
+		return line.mapAscii(false);
+	}
+
+	public String toString()
+	{
+		return "lower";
+	}
 }
 
-class FirstLetters implements Transform
+class FirstLetters implements Transform, BufferTransform
 {
 	int nLetters;
 
@@ -158,9 +466,24 @@ class FirstLetters implements Transform
 
 		return str.substring(0, this.nLetters);
 	}
+
+	public boolean transform(CharLine line)
+	{
+		if ((line.length >= this.nLetters) && (this.nLetters >= 0))
+		{
+			line.length = this.nLetters;
+		}
+
+		return (this.nLetters >= 0);
+	}
+
+	public String toString()
+	{
+		return "first=" + nLetters;
+	}
 }
 
-class LastLetters implements Transform
+class LastLetters implements Transform, BufferTransform
 {
 	int nLetters;
 
@@ -178,149 +501,6829 @@ class LastLetters implements Transform
 
 		return str.substring(str.length() - this.nLetters, str.length());
 	}
+
+	public boolean transform(CharLine line)
+	{
+		if ((line.length >= this.nLetters) && (this.nLetters >= 0))
+		{
+			System.arraycopy(line.chars, line.length - this.nLetters, line.chars, 0, this.nLetters);
+			line.length = this.nLetters;
+		}
+
+		return (this.nLetters >= 0);
+	}
+
+	public String toString()
+	{
+		return "last=" + nLetters;
+	}
 }
 
-class Replace implements Transform
+class Replace implements Transform, BufferTransform
 {
 	String toReplace;
 	String replaceWith;
+	SubstringMatcher matcher;
 
 	Replace(String toReplace, String replaceWith)
 	{
 		this.toReplace = toReplace;
 		this.replaceWith = replaceWith;
+		this.matcher = new SubstringMatcher(toReplace);
 	}
 
 	public String transform(String str)
 	{
-		return str.replace(toReplace, replaceWith);
-	}
-}
+		if (!(matcher.usesSkipTable()))
+		{
+			return str.replace(toReplace, replaceWith);
+		}
 
-class FileHelper
-{
-    /**
-	 * Takes a path to a file and returns all of the lines in the
-	 * file as an array of strings, printing an error if it failed.
-	 *
-	 * @param path
-	 */
-    static String[] getLines(String path) {
-        try {
-            return Files.readAllLines(Paths.get(path)).toArray(String[]::new);
-        } catch (IOException ioe) {
-            System.err.println("Error reading file " + path + ": " + ioe);
-            return new String[] { "Error reading file " + path + ": " + ioe };
-        }
-    }
-}
+		int found = matcher.indexOf(str, 0);
 
-class StringSearch
-{
-	/**
-	 * Parses query and accordingly creates Query object for return
-	 *
-	 * @param query
-	 * @return parsedQuery
-	 */
-	public static Query parseQuery(String query)
-	{
-		String[] queryArray = query.split("=");
-		String keyword = queryArray[0];
-		String searchIndex = queryArray[1];
-		Query parsedQuery = null;
-		String errorMsg = "Invalid query";
+		if (found < 0)
+		{
+			return str;
+		}
+
+		StringBuilder replaced = new StringBuilder(str.length() + replaceWith.length());
+		int from = 0;
 
-		switch (keyword)
+		while (found >= 0)
 		{
-			case "contains":
-				parsedQuery = new Contains(searchIndex.substring(1, searchIndex.length() -1));
-				break;
-			case "length":
-				parsedQuery = new Length(Integer.parseInt(searchIndex));
-				break;
-			case "greater":
-				parsedQuery = new GreaterThan(Integer.parseInt(searchIndex));
-				break;
-			case "less":
-				parsedQuery = new LessThan(Integer.parseInt(searchIndex));
-				break;
-			case "starts":
-				parsedQuery = new StartsWith(searchIndex.substring(1, searchIndex.length() - 1));
-				break;
-			case "ends":
-				parsedQuery = new EndsWith(searchIndex.substring(1, searchIndex.length() - 1));
-				break;
-			case "not":
-				parsedQuery = new Not(parseQuery(query.substring(4, query.length() - 1)));
-				break;
-			default:
-				break;
+			replaced.append(str, from, found).append(replaceWith);
+			from = found + toReplace.length();
+			found = matcher.indexOf(str, from);
 		}
 
-		return parsedQuery;
+		return replaced.append(str, from, str.length()).toString();
 	}
 
-	/**
-	 * Returns false if non-matching element is found, otherwise true
-	 *
-	 * @param qArray
-	 * @param str
-	 * @return matchStatus
-	 */
-	public static boolean matchesAll(Query[] qArray, String str)
+	public boolean transform(CharLine line)
 	{
-		boolean matchStatus = false;
+		if (toReplace.isEmpty())
+		{
+			return false;
+		}
 
-		for (Query query : qArray)
+		int found = matcher.indexOf(line.chars, line.length, 0);
+
+		if (found < 0)
 		{
-			if (!(query.matches(str)))
-			{
-				return matchStatus;
-			}
+			return true;
 		}
 
-		matchStatus = true;
+		int from = 0;
 
-		return matchStatus;
+		line.clearScratch();
+
+		while (found >= 0)
+		{
+			line.appendScratch(line.chars, from, found - from);
+			line.appendScratch(replaceWith);
+			from = found + toReplace.length();
+			found = matcher.indexOf(line.chars, line.length, from);
+		}
+
+		line.appendScratch(line.chars, from, line.length - from);
+		line.swap();
+
+		return true;
+	}
+
+	public String toString()
+	{
+		return "replace=" + QueryParser.quote(toReplace) + ";" + QueryParser.quote(replaceWith);
 	}
+}
+
+class FusedTransform implements Transform, BufferTransform
+{
+	static final int NONE = 0;
+	static final int UPPER = 1;
+	static final int LOWER = 2;
+
+	final Transform[] chain;
+	final boolean[] first;
+	final int[] counts;
+	final int caseChange;
 
 	/**
-	 * Parses transform, returns object accordingly
+	 * Fuses a chain of FirstLetters, LastLetters, UpperCase and LowerCase
+	 * into one pass. On ASCII text the case changes are length-preserving
+	 * and only the last one matters, so the chain is one substring window
+	 * followed by one case mapping over just that window. Other text runs
+	 * the original chain.
 	 *
-	 * @param transform
-	 * @return parsedTransform
+	 * @param chain
 	 */
-	public static Transform parseTransform(String transform)
+	FusedTransform(Transform[] chain)
 	{
-		Transform parsedTransform = null;
-		
-		if (transform.contains("="))
-		{
-			String[] tArray = transform.split("=");
-			String transformation = tArray[0];
-			String index = tArray[1];
+		this.chain = chain;
+
+		List<Integer> counts = new ArrayList<>();
+		List<Boolean> first = new ArrayList<>();
+		int caseChange = NONE;
 
-			switch (transformation)
+		for (Transform transform : chain)
+		{
+			if (transform instanceof FirstLetters)
 			{
-				case "first":
-					parsedTransform = new FirstLetters(Integer.parseInt(index));
-					break;
-				case "last":
-					parsedTransform = new LastLetters(Integer.parseInt(index));
-					break;
-				case "replace":
-					parsedTransform = new Replace(transform.substring(9, transform.indexOf(";") - 1), transform.substring(transform.indexOf(";") + 2, transform.length() - 1));
-					break;
+				first.add(true);
+				counts.add(((FirstLetters) transform).nLetters);
+			}
+			else if (transform instanceof LastLetters)
+			{
+				first.add(false);
+				counts.add(((LastLetters) transform).nLetters);
+			}
+			else
+			{
+				caseChange = (transform instanceof UpperCase) ? UPPER : LOWER;
 			}
 		}
-		else if (transform.equals("upper"))
-		{
-			parsedTransform = new UpperCase();
-		}
-		else if (transform.equals("lower"))
+
+		this.first = new boolean[first.size()];
+		this.counts = new int[counts.size()];
+
+		for (int i = 0; i < this.counts.length; i++)
+		{
+			this.first[i] = first.get(i);
+			this.counts[i] = counts.get(i);
+		}
+
+		this.caseChange = caseChange;
+	}
+
+	static boolean isFusable(Transform transform)
+	{
+		if (transform instanceof FirstLetters)
+		{
+			return (((FirstLetters) transform).nLetters >= 0);
+		}
+		else if (transform instanceof LastLetters)
+		{
+			return (((LastLetters) transform).nLetters >= 0);
+		}
+
+		return (transform instanceof UpperCase) || (transform instanceof LowerCase);
+	}
+
+	/**
+	 * Replaces each run of two or more fusable transforms in tArray with
+	 * one FusedTransform, leaving Replace and any other transform as is
+	 *
+	 * @param tArray
+	 * @return fused
+	 */
+	static Transform[] fuse(Transform[] tArray)
+	{
+		List<Transform> fused = new ArrayList<>();
+		List<Transform> run = new ArrayList<>();
+
+		for (int i = 0; i <= tArray.length; i++)
+		{
+			if ((i < tArray.length) && isFusable(tArray[i]))
+			{
+				run.add(tArray[i]);
+				continue;
+			}
+
+			if (run.size() > 1)
+			{
+				fused.add(new FusedTransform(run.toArray(new Transform[0])));
+			}
+			else
+			{
+				fused.addAll(run);
+			}
+
+			run.clear();
+
+			if (i < tArray.length)
+			{
+				fused.add(tArray[i]);
+			}
+		}
+
+		return fused.toArray(new Transform[0]);
+	}
+
+	/**
+	 * Returns {start, end} of the part of a line of the given length that
+	 * the FirstLetters and LastLetters steps keep
+	 *
+	 * @param length
+	 * @return window
+	 */
+	private int[] window(int length)
+	{
+		int start = 0;
+		int end = length;
+
+		for (int i = 0; i < counts.length; i++)
+		{
+			if (end - start >= counts[i])
+			{
+				if (first[i])
+				{
+					end = start + counts[i];
+				}
+				else
+				{
+					start = end - counts[i];
+				}
+			}
+		}
+
+		return new int[]{ start, end };
+	}
+
+	/**
+	 * Returns true if the fused pass gives the same result as the chain:
+	 * always without a case change, otherwise only for ASCII text
+	 */
+	private boolean isSimple(String str)
+	{
+		if (caseChange == NONE)
+		{
+			return true;
+		}
+
+		for (int i = 0; i < str.length(); i++)
+		{
+			if (str.charAt(i) >= 0x80)
+			{
+				return false;
+			}
+		}
+
+		return CharLine.ASCII_CASE;
+	}
+
+	private boolean isSimple(char[] chars, int length)
+	{
+		if (caseChange == NONE)
+		{
+			return true;
+		}
+
+		for (int i = 0; i < length; i++)
+		{
+			if (chars[i] >= 0x80)
+			{
+				return false;
+			}
+		}
+
+		return CharLine.ASCII_CASE;
+	}
+
+	private char map(char c)
+	{
+		if ((caseChange == UPPER) && (c >= 'a') && (c <= 'z'))
+		{
+			return (char) (c - 32);
+		}
+		else if ((caseChange == LOWER) && (c >= 'A') && (c <= 'Z'))
+		{
+			return (char) (c + 32);
+		}
+
+		return c;
+	}
+
+	public String transform(String str)
+	{
+		if (!(isSimple(str)))
+		{
+			return StringSearch.applyTransformations(chain, str);
+		}
+
+		int[] window = window(str.length());
+
+		if (caseChange == NONE)
+		{
+			return str.substring(window[0], window[1]);
+		}
+
+		char[] result = new char[window[1] - window[0]];
+
+		for (int i = 0; i < result.length; i++)
+		{
+			result[i] = map(str.charAt(window[0] + i));
+		}
+
+		return new String(result);
+	}
+
+	public boolean transform(CharLine line)
+	{
+		if (!(isSimple(line.chars, line.length)))
+		{
+			return false;
+		}
+
+		int[] window = window(line.length);
+
+		for (int i = window[0]; i < window[1]; i++)
+		{
+			line.chars[i - window[0]] = map(line.chars[i]);
+		}
+
+		line.length = window[1] - window[0];
+
+		return true;
+	}
+
+	public String toString()
+	{
+		StringJoiner joined = new StringJoiner("&", "fused(", ")");
+
+		for (Transform transform : chain)
+		{
+			joined.add(String.valueOf(transform));
+		}
+
+		return joined.toString();
+	}
+}
+
+class CharLine implements CharSequence
+{
+	static final ThreadLocal<CharLine> BUFFERS = ThreadLocal.withInitial(CharLine::new);
+	static final boolean ASCII_CASE = !(Arrays.asList("tr", "az", "lt").contains(Locale.getDefault().getLanguage()));
+
+	char[] chars = new char[256];
+	int length = 0;
+	char[] scratch = new char[256];
+	int scratchLength = 0;
+
+	/**
+	 * Returns this thread's reusable line buffer
+	 *
+	 * @return line
+	 */
+	static CharLine get()
+	{
+		return BUFFERS.get();
+	}
+
+	void set(String str)
+	{
+		length = str.length();
+		ensure(length);
+		str.getChars(0, length, chars, 0);
+	}
+
+	void setAscii(ByteBuffer buf, int start, int end)
+	{
+		length = end - start;
+		ensure(length);
+
+		for (int i = 0; i < length; i++)
+		{
+			chars[i] = (char) buf.get(start + i);
+		}
+	}
+
+	private void ensure(int capacity)
+	{
+		if (chars.length < capacity)
+		{
+			chars = new char[Math.max(capacity, chars.length * 2)];
+		}
+	}
+
+	/**
+	 * Upper- or lower-cases the line in place. Stops and returns false at
+	 * the first non-ASCII char (or if the default locale has its own
+	 * rules for ASCII letters), since the String methods may then change
+	 * the length or use locale rules.
+	 *
+	 * @param upper
+	 * @return handled
+	 */
+	boolean mapAscii(boolean upper)
+	{
+		if (!(ASCII_CASE))
+		{
+			return false;
+		}
+
+		for (int i = 0; i < length; i++)
+		{
+			char c = chars[i];
+
+			if (c >= 0x80)
+			{
+				return false;
+			}
+
+			if (upper && (c >= 'a') && (c <= 'z'))
+			{
+				chars[i] = (char) (c - 32);
+			}
+			else if (!(upper) && (c >= 'A') && (c <= 'Z'))
+			{
+				chars[i] = (char) (c + 32);
+			}
+		}
+
+		return true;
+	}
+
+	void clearScratch()
+	{
+		scratchLength = 0;
+	}
+
+	void appendScratch(char[] source, int from, int count)
+	{
+		growScratch(count);
+		System.arraycopy(source, from, scratch, scratchLength, count);
+		scratchLength += count;
+	}
+
+	void appendScratch(String str)
+	{
+		growScratch(str.length());
+		str.getChars(0, str.length(), scratch, scratchLength);
+		scratchLength += str.length();
+	}
+
+	private void growScratch(int count)
+	{
+		if (scratch.length < scratchLength + count)
+		{
+			scratch = Arrays.copyOf(scratch, Math.max(scratchLength + count, scratch.length * 2));
+		}
+	}
+
+	/**
+	 * Makes the scratch buffer the current line
+	 */
+	void swap()
+	{
+		char[] previous = chars;
+
+		chars = scratch;
+		length = scratchLength;
+		scratch = previous;
+		scratchLength = 0;
+	}
+
+	public int length()
+	{
+		return length;
+	}
+
+	public char charAt(int index)
+	{
+		return chars[index];
+	}
+
+	public CharSequence subSequence(int start, int end)
+	{
+		return new String(chars, start, end - start);
+	}
+
+	public String toString()
+	{
+		return new String(chars, 0, length);
+	}
+}
+
+class SubstringMatcher
+{
+	static final int MIN_SKIP_LENGTH = 3;
+
+	final String needle;
+	final byte[] needleBytes;
+	final int[] charSkip;
+	final int[] byteSkip;
+
+	/**
+	 * Precomputes Boyer-Moore-Horspool skip tables for needle, keyed on
+	 * the low byte of each char. Needles shorter than MIN_SKIP_LENGTH
+	 * use the plain JDK search, where the tables would not pay off.
+	 *
+	 * @param needle
+	 */
+	SubstringMatcher(String needle)
+	{
+		this.needle = needle;
+		this.needleBytes = needle.getBytes(StandardCharsets.UTF_8);
+
+		if (needle.length() < MIN_SKIP_LENGTH)
+		{
+			this.charSkip = null;
+			this.byteSkip = null;
+			return;
+		}
+
+		this.charSkip = new int[256];
+		this.byteSkip = new int[256];
+		Arrays.fill(charSkip, needle.length());
+		Arrays.fill(byteSkip, needleBytes.length);
+
+		// later positions overwrite earlier ones, keeping the smallest safe shift
+		for (int i = 0; i < needle.length() - 1; i++)
+		{
+			charSkip[needle.charAt(i) & 0xFF] = needle.length() - 1 - i;
+		}
+
+		for (int i = 0; i < needleBytes.length - 1; i++)
+		{
+			byteSkip[needleBytes[i] & 0xFF] = needleBytes.length - 1 - i;
+		}
+	}
+
+	boolean usesSkipTable()
+	{
+		return (charSkip != null);
+	}
+
+	/**
+	 * Returns the index of the first occurrence of the needle in str at
+	 * or after from, or -1 if there is none
+	 *
+	 * @param str
+	 * @param from
+	 * @return index
+	 */
+	int indexOf(String str, int from)
+	{
+		if (charSkip == null)
+		{
+			return str.indexOf(needle, from);
+		}
+
+		int m = needle.length();
+		int last = str.length() - m;
+		char tail = needle.charAt(m - 1);
+
+		for (int i = from; i <= last; )
+		{
+			char c = str.charAt(i + m - 1);
+
+			if ((c == tail) && str.regionMatches(i, needle, 0, m - 1))
+			{
+				return i;
+			}
+
+			i += charSkip[c & 0xFF];
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Returns the index of the first occurrence of the needle in
+	 * chars[0, length) at or after from, or -1 if there is none
+	 *
+	 * @param chars
+	 * @param length
+	 * @param from
+	 * @return index
+	 */
+	int indexOf(char[] chars, int length, int from)
+	{
+		int m = needle.length();
+		int last = length - m;
+
+		if (m == 0)
+		{
+			return (from <= length) ? from : -1;
+		}
+
+		char tail = needle.charAt(m - 1);
+
+		for (int i = from; i <= last; )
+		{
+			char c = chars[i + m - 1];
+
+			if (c == tail)
+			{
+				int j = 0;
+
+				while ((j < m - 1) && (chars[i + j] == needle.charAt(j)))
+				{
+					j++;
+				}
+
+				if (j == m - 1)
+				{
+					return i;
+				}
+			}
+
+			i += (charSkip == null) ? 1 : charSkip[c & 0xFF];
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Returns the position of the first occurrence of the needle's UTF-8
+	 * bytes in buf[start, end), or -1 if there is none
+	 *
+	 * @param buf
+	 * @param start
+	 * @param end
+	 * @return index
+	 */
+	int indexOf(ByteBuffer buf, int start, int end)
+	{
+		if (byteSkip == null)
+		{
+			return ByteLines.indexOf(buf, start, end, needleBytes);
+		}
+
+		int m = needleBytes.length;
+		int last = end - m;
+		byte tail = needleBytes[m - 1];
+
+		for (int i = start; i <= last; )
+		{
+			byte b = buf.get(i + m - 1);
+
+			if ((b == tail) && ByteLines.regionMatches(buf, i, needleBytes, m - 1))
+			{
+				return i;
+			}
+
+			i += byteSkip[b & 0xFF];
+		}
+
+		return -1;
+	}
+}
+
+class FileHelper
+{
+    /**
+	 * Takes a path to a file and returns all of the lines in the
+	 * file as an array of strings, printing an error if it failed.
+	 *
+	 * @param path
+	 */
+    static String[] getLines(String path) {
+        try {
+            return Files.readAllLines(Paths.get(path)).toArray(String[]::new);
+        } catch (IOException ioe) {
+            System.err.println("Error reading file " + path + ": " + ioe);
+            return new String[] { "Error reading file " + path + ": " + ioe };
+        }
+    }
+}
+
+class ByteLines
+{
+	/**
+	 * Evaluates query against an ASCII line, decoding it only if query
+	 * has no byte-level implementation
+	 *
+	 * @param query
+	 * @param buf
+	 * @param start
+	 * @param end
+	 * @return matchStatus
+	 */
+	static boolean matches(Query query, ByteBuffer buf, int start, int end)
+	{
+		if (query instanceof ByteQuery)
+		{
+			return ((ByteQuery) query).matches(buf, start, end);
+		}
+
+		return query.matches(decode(buf, start, end, true));
+	}
+
+	static boolean matchesAll(Query[] qArray, ByteBuffer buf, int start, int end)
+	{
+		for (Query query : qArray)
+		{
+			if (!(matches(query, buf, start, end)))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns the end of the line starting at start, which is the
+	 * position of its '\n' or '\r' terminator, or to if it has none
+	 *
+	 * @param buf
+	 * @param start
+	 * @param to
+	 * @return end
+	 */
+	static int lineEnd(ByteBuffer buf, int start, int to)
+	{
+		int end = start;
+
+		while ((end < to) && (buf.get(end) != '\n') && (buf.get(end) != '\r'))
+		{
+			end++;
+		}
+
+		return end;
+	}
+
+	/**
+	 * Returns the start of the line after the one ending at end
+	 *
+	 * @param buf
+	 * @param end
+	 * @param to
+	 * @return start
+	 */
+	static int nextLine(ByteBuffer buf, int end, int to)
+	{
+		if ((end < to) && (buf.get(end) == '\r') && (end + 1 < to) && (buf.get(end + 1) == '\n'))
+		{
+			return end + 2;
+		}
+
+		return end + 1;
+	}
+
+	static boolean isAscii(ByteBuffer buf, int start, int end)
+	{
+		for (int i = start; i < end; i++)
+		{
+			if (buf.get(i) < 0)
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	static String decode(ByteBuffer buf, int start, int end, boolean ascii)
+	{
+		byte[] bytes = new byte[end - start];
+
+		buf.get(start, bytes);
+
+		return new String(bytes, ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+	}
+
+	static boolean regionMatches(ByteBuffer buf, int start, byte[] bytes)
+	{
+		return regionMatches(buf, start, bytes, bytes.length);
+	}
+
+	static boolean regionMatches(ByteBuffer buf, int start, byte[] bytes, int length)
+	{
+		for (int i = 0; i < length; i++)
+		{
+			if (buf.get(start + i) != bytes[i])
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns the position of the first occurrence of needle in
+	 * buf[start, end), or -1 if there is none
+	 *
+	 * @param buf
+	 * @param start
+	 * @param end
+	 * @param needle
+	 * @return index
+	 */
+	static int indexOf(ByteBuffer buf, int start, int end, byte[] needle)
+	{
+		if (needle.length == 0)
+		{
+			return start;
+		}
+
+		byte first = needle[0];
+		int last = end - needle.length;
+
+		for (int i = start; i <= last; i++)
+		{
+			if ((buf.get(i) == first) && regionMatches(buf, i, needle))
+			{
+				return i;
+			}
+		}
+
+		return -1;
+	}
+}
+
+class MappedFile implements AutoCloseable
+{
+	static final long MAX_SEGMENT = Integer.MAX_VALUE;
+
+	final FileChannel channel;
+	final long size;
+	final List<MappedByteBuffer> segments = new ArrayList<>();
+	final List<Long> segmentOffsets = new ArrayList<>();
+
+	/**
+	 * Maps a file read-only as a series of segments that each end on a
+	 * line boundary, so no line is split across two buffers.
+	 *
+	 * @param path
+	 */
+	MappedFile(Path path) throws IOException
+	{
+		this.channel = FileChannel.open(path, StandardOpenOption.READ);
+		this.size = channel.size();
+
+		long position = 0;
+
+		while (position < size)
+		{
+			long length = Math.min(MAX_SEGMENT, size - position);
+			MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+			int cut = (int) length;
+
+			if (position + length < size)
+			{
+				cut = lastLineEnd(segment, (int) length);
+			}
+
+			segment.limit(cut);
+			segments.add(segment);
+			segmentOffsets.add(position);
+			position += cut;
+		}
+	}
+
+	private static int lastLineEnd(ByteBuffer segment, int length) throws IOException
+	{
+		for (int i = length - 1; i >= 0; i--)
+		{
+			byte b = segment.get(i);
+
+			// a trailing '\r' may be the first half of a "\r\n" pair
+			if ((b == '\n') || ((b == '\r') && (i < length - 1)))
+			{
+				return i + 1;
+			}
+		}
+
+		throw new IOException("Line longer than " + MAX_SEGMENT + " bytes");
+	}
+
+	/**
+	 * Returns the file offset at which segment starts
+	 *
+	 * @param segment
+	 * @return offset
+	 */
+	long baseOf(ByteBuffer segment)
+	{
+		for (int i = 0; i < segments.size(); i++)
+		{
+			if (segments.get(i) == segment)
+			{
+				return segmentOffsets.get(i);
+			}
+		}
+
+		throw new IllegalArgumentException("Not a segment of this file");
+	}
+
+	/**
+	 * Returns the index of the segment holding the byte at offset
+	 *
+	 * @param offset
+	 * @return segment
+	 */
+	int segmentOf(long offset)
+	{
+		int low = 0;
+		int high = segmentOffsets.size() - 1;
+
+		while (low < high)
+		{
+			int mid = (low + high + 1) >>> 1;
+
+			if (segmentOffsets.get(mid) <= offset)
+			{
+				low = mid;
+			}
+			else
+			{
+				high = mid - 1;
+			}
+		}
+
+		return low;
+	}
+
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+}
+
+class MappedSearch
+{
+	/**
+	 * Scans every segment of file, calling handler on each line that
+	 * matches plan
+	 *
+	 * @param file
+	 * @param plan
+	 * @param handler
+	 */
+	static void search(MappedFile file, SearchPlan plan, ByteLineHandler handler)
+	{
+		for (ByteBuffer segment : file.segments)
+		{
+			if (!(scan(segment, 0, segment.limit(), plan, handler)))
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Splits buf[from, to) into lines on raw '\n', '\r' and "\r\n" bytes
+	 * and evaluates plan against each. ASCII lines are matched byte by
+	 * byte; anything else is decoded first. Returns false if handler
+	 * asked to stop.
+	 *
+	 * @param buf
+	 * @param from
+	 * @param to
+	 * @param plan
+	 * @param handler
+	 * @return keepScanning
+	 */
+	static boolean scan(ByteBuffer buf, int from, int to, SearchPlan plan, ByteLineHandler handler)
+	{
+		int start = from;
+
+		while (start < to)
+		{
+			int end = start;
+			int high = 0;
+			byte b = 0;
+
+			while (end < to)
+			{
+				b = buf.get(end);
+
+				if ((b == '\n') || (b == '\r'))
+				{
+					break;
+				}
+
+				high |= b;
+				end++;
+			}
+
+			boolean ascii = (high >= 0);
+			boolean matched = ascii ? ByteLines.matches(plan.query, buf, start, end)
+					: plan.matches(ByteLines.decode(buf, start, end, false));
+
+			if (matched && !(handler.handle(buf, start, end, ascii)))
+			{
+				return false;
+			}
+
+			start = end + 1;
+
+			if ((b == '\r') && (start < to) && (buf.get(start) == '\n'))
+			{
+				start++;
+			}
+		}
+
+		return true;
+	}
+}
+
+class ParallelSearch
+{
+	static final int CHUNK_SIZE = 4 << 20;
+
+	/**
+	 * Searches file on a ForkJoinPool, one task per line-aligned chunk,
+	 * passing each transformed match to output. When ordered, output is
+	 * called from this thread in original line order; otherwise each
+	 * chunk's matches are passed as soon as that chunk is done.
+	 *
+	 * @param file
+	 * @param plan
+	 * @param threads
+	 * @param ordered
+	 * @param output
+	 */
+	static void search(MappedFile file, SearchPlan plan, int threads, boolean ordered, LineHandler output)
+	{
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		AtomicBoolean stopped = new AtomicBoolean(false);
+
+		try
+		{
+			Deque<ForkJoinTask<List<String>>> pending = new ArrayDeque<>();
+			int window = threads * 4;
+
+			for (int[] chunk : chunks(file))
+			{
+				ByteBuffer segment = file.segments.get(chunk[0]);
+
+				pending.add(pool.submit(() ->
+				{
+					List<String> matches = new ArrayList<>();
+
+					if (stopped.get())
+					{
+						return matches;
+					}
+
+					MappedSearch.scan(segment, chunk[1], chunk[2], plan, (buf, start, end, ascii) ->
+					{
+						matches.add(plan.apply(ByteLines.decode(buf, start, end, ascii)));
+						return true;
+					});
+
+					if (!(ordered))
+					{
+						emit(matches, output, stopped);
+					}
+
+					return matches;
+				}));
+
+				// keep a bounded number of finished chunks waiting to be printed
+				if ((pending.size() >= window) && !(drain(pending, ordered, output, stopped)))
+				{
+					return;
+				}
+			}
+
+			while (!(pending.isEmpty()))
+			{
+				if (!(drain(pending, ordered, output, stopped)))
+				{
+					return;
+				}
+			}
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Counts the lines of file that match plan, one task per chunk
+	 *
+	 * @param file
+	 * @param plan
+	 * @param threads
+	 * @return count
+	 */
+	static long count(MappedFile file, SearchPlan plan, int threads)
+	{
+		ForkJoinPool pool = new ForkJoinPool(threads);
+
+		try
+		{
+			List<ForkJoinTask<Long>> counts = new ArrayList<>();
+			long total = 0;
+
+			for (int[] chunk : chunks(file))
+			{
+				ByteBuffer segment = file.segments.get(chunk[0]);
+
+				counts.add(pool.submit(() ->
+				{
+					long[] count = { 0 };
+
+					MappedSearch.scan(segment, chunk[1], chunk[2], plan, (buf, start, end, ascii) ->
+					{
+						count[0]++;
+						return true;
+					});
+
+					return count[0];
+				}));
+			}
+
+			for (ForkJoinTask<Long> count : counts)
+			{
+				total += count.join();
+			}
+
+			return total;
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+
+	private static boolean drain(Deque<ForkJoinTask<List<String>>> pending, boolean ordered, LineHandler output,
+			AtomicBoolean stopped)
+	{
+		List<String> matches = pending.poll().join();
+
+		return ordered ? emit(matches, output, stopped) : !(stopped.get());
+	}
+
+	/**
+	 * Passes matches to output unless a previous call was told to stop,
+	 * and records in stopped if output asks to stop. The check is made
+	 * under the same lock as the writes, so no chunk that finishes
+	 * after the limit is reached writes anything.
+	 *
+	 * @param matches
+	 * @param output
+	 * @param stopped
+	 * @return keepGoing
+	 */
+	private static boolean emit(List<String> matches, LineHandler output, AtomicBoolean stopped)
+	{
+		synchronized (output)
+		{
+			for (String line : matches)
+			{
+				if (stopped.get())
+				{
+					return false;
+				}
+
+				if (!(output.handle(line)))
+				{
+					stopped.set(true);
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Splits every segment of file into chunks of about CHUNK_SIZE bytes
+	 * that start and end on line boundaries. Each chunk is given as
+	 * {segment, from, to}.
+	 *
+	 * @param file
+	 * @return chunks
+	 */
+	static List<int[]> chunks(MappedFile file)
+	{
+		List<int[]> chunks = new ArrayList<>();
+
+		for (int i = 0; i < file.segments.size(); i++)
+		{
+			ByteBuffer segment = file.segments.get(i);
+			int limit = segment.limit();
+			int from = 0;
+
+			while (from < limit)
+			{
+				int to = (int) Math.min((long) from + CHUNK_SIZE, limit);
+
+				while ((to < limit) && (segment.get(to - 1) != '\n'))
+				{
+					to++;
+				}
+
+				chunks.add(new int[]{i, from, to});
+				from = to;
+			}
+		}
+
+		return chunks;
+	}
+}
+
+class CompressedInput
+{
+	static final int PART_SIZE = 4 << 20;
+	static final int BUFFER = 1 << 16;
+
+	/**
+	 * Returns true if the file starts with the gzip magic number
+	 *
+	 * @param path
+	 * @return gzip
+	 */
+	static boolean isGzip(Path path)
+	{
+		try (InputStream in = Files.newInputStream(path))
+		{
+			return (in.read() == 0x1f) && (in.read() == 0x8b);
+		}
+		catch (IOException ioe)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Opens path as UTF-8 text, decompressing it on the fly if it is
+	 * gzip. Malformed input is reported as Files.newBufferedReader does.
+	 *
+	 * @param path
+	 * @param threads
+	 * @return reader
+	 */
+	static BufferedReader newBufferedReader(Path path, int threads) throws IOException
+	{
+		if (!(isGzip(path)))
+		{
+			return Files.newBufferedReader(path);
+		}
+
+		return new BufferedReader(new InputStreamReader(open(path, threads), StandardCharsets.UTF_8.newDecoder()));
+	}
+
+	/**
+	 * Opens a gzip file for streaming decompression. With more than one
+	 * thread, a file of several gzip members (as written by pigz, bgzip
+	 * or by concatenating .gz files) is inflated in parallel, part by
+	 * part; otherwise, and for single-member files, GZIPInputStream is
+	 * used.
+	 *
+	 * @param path
+	 * @param threads
+	 * @return in
+	 */
+	static InputStream open(Path path, int threads) throws IOException
+	{
+		if (threads > 1)
+		{
+			List<Long> starts = partStarts(path);
+
+			if (starts.size() > 1)
+			{
+				return new ParallelGzipInputStream(path, starts, threads);
+			}
+		}
+
+		return new GZIPInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER), BUFFER);
+	}
+
+	/**
+	 * Returns offset 0 and, about every PART_SIZE bytes, the next offset
+	 * that looks like the start of a gzip member. These are only
+	 * candidates; compressed data can contain the same bytes, and
+	 * ParallelGzipInputStream checks each one before it is used.
+	 *
+	 * @param path
+	 * @return starts
+	 */
+	static List<Long> partStarts(Path path) throws IOException
+	{
+		List<Long> starts = new ArrayList<>();
+
+		starts.add(0L);
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			long size = channel.size();
+
+			for (long target = PART_SIZE; target < size; target += PART_SIZE)
+			{
+				long last = starts.get(starts.size() - 1);
+				long from = Math.max(target, last + 1);
+				ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(PART_SIZE, size - from));
+
+				for (int i = 0; i + 4 <= window.limit(); i++)
+				{
+					if (isHeader(window, i))
+					{
+						starts.add(from + i);
+						break;
+					}
+				}
+			}
+		}
+
+		return starts;
+	}
+
+	static boolean isHeader(ByteBuffer buf, int i)
+	{
+		return (buf.get(i) == (byte) 0x1f) && (buf.get(i + 1) == (byte) 0x8b) && (buf.get(i + 2) == 8)
+				&& ((buf.get(i + 3) & 0xE0) == 0);
+	}
+}
+
+class InflatedPart
+{
+	final long start;
+	final ByteArrayOutputStream data = new ByteArrayOutputStream();
+	long end = -1;
+
+	/**
+	 * The output of the gzip members from start up to end
+	 *
+	 * @param start
+	 */
+	InflatedPart(long start)
+	{
+		this.start = start;
+	}
+}
+
+class ParallelGzipInputStream extends InputStream
+{
+	static final int FEXTRA = 4;
+	static final int FNAME = 8;
+	static final int FCOMMENT = 16;
+	static final int FHCRC = 2;
+
+	final FileChannel channel;
+	final long size;
+	final List<Long> starts;
+	final ExecutorService pool;
+	final Deque<Future<InflatedPart>> pending = new ArrayDeque<>();
+	final int window;
+	int submitted = 0;
+	long expected = 0;
+	byte[] current = new byte[0];
+	int position = 0;
+	InputStream fallback = null;
+
+	/**
+	 * Inflates the parts of a multi-member gzip file on a pool of
+	 * threads, at most a few parts per thread ahead of the reader. Each
+	 * part inflates whole members, checking every member's CRC and
+	 * length, until it reaches the next part's start. A part is used
+	 * only if it begins exactly where the previous one ended, so a false
+	 * candidate start is skipped. If a part cannot be inflated, the rest
+	 * of the file is read from that point with GZIPInputStream, which
+	 * reports the real error if there is one.
+	 *
+	 * @param path
+	 * @param starts
+	 * @param threads
+	 */
+	ParallelGzipInputStream(Path path, List<Long> starts, int threads) throws IOException
+	{
+		this.channel = FileChannel.open(path, StandardOpenOption.READ);
+		this.size = channel.size();
+		this.starts = starts;
+		this.pool = Executors.newFixedThreadPool(threads);
+		this.window = threads * 2;
+	}
+
+	public int read() throws IOException
+	{
+		byte[] one = new byte[1];
+
+		return (read(one, 0, 1) < 0) ? -1 : (one[0] & 0xFF);
+	}
+
+	public int read(byte[] bytes, int offset, int length) throws IOException
+	{
+		while ((fallback == null) && (position == current.length))
+		{
+			if (!(advance()))
+			{
+				return -1;
+			}
+		}
+
+		if (fallback != null)
+		{
+			return fallback.read(bytes, offset, length);
+		}
+
+		int n = Math.min(length, current.length - position);
+
+		System.arraycopy(current, position, bytes, offset, n);
+		position += n;
+
+		return n;
+	}
+
+	/**
+	 * Moves on to the next usable part, returning false at the end of
+	 * the file
+	 *
+	 * @return more
+	 */
+	private boolean advance() throws IOException
+	{
+		while ((submitted < starts.size()) && (pending.size() < window))
+		{
+			long start = starts.get(submitted);
+			long end = (submitted + 1 < starts.size()) ? starts.get(submitted + 1) : size;
+
+			pending.add(pool.submit(() -> inflate(start, end)));
+			submitted++;
+		}
+
+		if (pending.isEmpty())
+		{
+			if (expected < size)
+			{
+				fallBack();
+				return true;
+			}
+
+			return false;
+		}
+
+		InflatedPart part;
+
+		try
+		{
+			part = pending.remove().get();
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		catch (ExecutionException ee)
+		{
+			throw new IOException(ee.getCause());
+		}
+
+		if (part.start < expected)
+		{
+			// the previous part ran past this candidate, so it was not a member start
+			return true;
+		}
+
+		if ((part.start > expected) || (part.end < 0))
+		{
+			fallBack();
+			return true;
+		}
+
+		current = part.data.toByteArray();
+		position = 0;
+		expected = part.end;
+
+		return true;
+	}
+
+	private void fallBack() throws IOException
+	{
+		pool.shutdownNow();
+		pending.clear();
+		fallback = new GZIPInputStream(new BufferedInputStream(
+				Channels.newInputStream(channel.position(expected)), CompressedInput.BUFFER), CompressedInput.BUFFER);
+	}
+
+	/**
+	 * Inflates whole members from start until at least end, leaving
+	 * part.end at -1 if the data there is not valid gzip
+	 *
+	 * @param start
+	 * @param end
+	 * @return part
+	 */
+	InflatedPart inflate(long start, long end) throws IOException
+	{
+		InflatedPart part = new InflatedPart(start);
+		ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, Integer.MAX_VALUE))
+				.order(ByteOrder.LITTLE_ENDIAN);
+		Inflater inflater = new Inflater(true);
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[CompressedInput.BUFFER];
+		int pos = 0;
+
+		try
+		{
+			do
+			{
+				pos = skipHeader(buf, pos);
+				inflater.reset();
+				crc.reset();
+				inflater.setInput(buf.slice(pos, buf.limit() - pos));
+
+				while (!(inflater.finished()))
+				{
+					int n = inflater.inflate(chunk);
+
+					if ((n == 0) && (inflater.needsInput() || inflater.needsDictionary()))
+					{
+						return part;
+					}
+
+					crc.update(chunk, 0, n);
+					part.data.write(chunk, 0, n);
+				}
+
+				pos += (int) inflater.getBytesRead();
+
+				if ((buf.limit() - pos < 8) || (buf.getInt(pos) != (int) crc.getValue())
+						|| (buf.getInt(pos + 4) != (int) inflater.getBytesWritten()))
+				{
+					return part;
+				}
+
+				pos += 8;
+			}
+			while (start + pos < end);
+		}
+		catch (DataFormatException | IndexOutOfBoundsException e)
+		{
+			return part;
+		}
+		finally
+		{
+			inflater.end();
+		}
+
+		part.end = start + pos;
+
+		return part;
+	}
+
+	/**
+	 * Returns the position after the member header at pos
+	 *
+	 * @param buf
+	 * @param pos
+	 * @return dataStart
+	 */
+	static int skipHeader(ByteBuffer buf, int pos) throws DataFormatException
+	{
+		if (!(CompressedInput.isHeader(buf, pos)))
+		{
+			throw new DataFormatException("Not a gzip member header");
+		}
+
+		int flags = buf.get(pos + 3);
+
+		pos += 10;
+
+		if ((flags & FEXTRA) != 0)
+		{
+			pos += 2 + (buf.getShort(pos) & 0xFFFF);
+		}
+
+		if ((flags & FNAME) != 0)
+		{
+			while (buf.get(pos++) != 0)
+			{
+			}
+		}
+
+		if ((flags & FCOMMENT) != 0)
+		{
+			while (buf.get(pos++) != 0)
+			{
+			}
+		}
+
+		if ((flags & FHCRC) != 0)
+		{
+			pos += 2;
+		}
+
+		return pos;
+	}
+
+	public void close() throws IOException
+	{
+		pool.shutdownNow();
+
+		if (fallback != null)
+		{
+			fallback.close();
+		}
+
+		channel.close();
+	}
+}
+
+class MultiFileSearch
+{
+	static final String GLOB_CHARS = "*?[{";
+
+	/**
+	 * Returns the file argument followed by each --file target. Every
+	 * target is taken whole, so file names may contain the path
+	 * separator.
+	 *
+	 * @param argument
+	 * @param options
+	 * @return targets
+	 */
+	static List<String> targets(String argument, SearchOptions options)
+	{
+		List<String> targets = new ArrayList<>();
+
+		targets.add(argument);
+		targets.addAll(options.files);
+
+		return targets;
+	}
+
+	/**
+	 * Returns true if targets name anything other than one plain file,
+	 * in which case output lines are prefixed with file and line number
+	 *
+	 * @param targets
+	 * @return multiple
+	 */
+	static boolean isMultiple(List<String> targets)
+	{
+		return (targets.size() != 1) || isGlob(targets.get(0)) || Files.isDirectory(Paths.get(targets.get(0)));
+	}
+
+	/**
+	 * Returns true if target is a glob pattern: it contains a glob
+	 * character and does not name an existing file, which is always
+	 * taken literally
+	 *
+	 * @param target
+	 * @return glob
+	 */
+	static boolean isGlob(String target)
+	{
+		for (char c : GLOB_CHARS.toCharArray())
+		{
+			if (target.indexOf(c) >= 0)
+			{
+				return !(Files.exists(Paths.get(target)));
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Expands files, directories (recursively) and glob patterns into
+	 * the regular files to search. Each directory or glob's files are
+	 * sorted, and a file named twice is searched once.
+	 *
+	 * @param targets
+	 * @return files
+	 */
+	static List<Path> expand(List<String> targets) throws IOException
+	{
+		Set<Path> files = new LinkedHashSet<>();
+
+		for (String target : targets)
+		{
+			Path path = Paths.get(target);
+
+			if (isGlob(target))
+			{
+				files.addAll(glob(target));
+			}
+			else if (Files.isDirectory(path))
+			{
+				try (java.util.stream.Stream<Path> walk = Files.walk(path))
+				{
+					walk.filter(Files::isRegularFile).sorted().forEach(files::add);
+				}
+			}
+			else if (Files.exists(path))
+			{
+				files.add(path);
+			}
+			else
+			{
+				throw new NoSuchFileException(target);
+			}
+		}
+
+		return new ArrayList<>(files);
+	}
+
+	/**
+	 * Walks from the directory before the first glob character, no
+	 * deeper than the pattern can match unless it contains "**"
+	 *
+	 * @param pattern
+	 * @return files
+	 */
+	static List<Path> glob(String pattern) throws IOException
+	{
+		String separator = FileSystems.getDefault().getSeparator();
+		int firstGlob = pattern.length();
+
+		for (char c : GLOB_CHARS.toCharArray())
+		{
+			int i = pattern.indexOf(c);
+
+			if (i >= 0)
+			{
+				firstGlob = Math.min(firstGlob, i);
+			}
+		}
+
+		int baseEnd = pattern.lastIndexOf(separator, firstGlob);
+		Path base = Paths.get((baseEnd < 0) ? "" : pattern.substring(0, baseEnd + 1));
+		int depth = pattern.contains("**") ? Integer.MAX_VALUE
+				: pattern.substring(baseEnd + 1).split(Pattern.quote(separator)).length;
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+
+		try (java.util.stream.Stream<Path> walk = Files.walk(base.toString().isEmpty() ? Paths.get(".") : base, depth))
+		{
+			return walk.map(path -> base.toString().isEmpty() ? Paths.get(".").relativize(path) : path)
+					.filter(path -> matcher.matches(path) && Files.isRegularFile(path))
+					.sorted()
+					.collect(java.util.stream.Collectors.toList());
+		}
+	}
+
+	/**
+	 * Searches files on a fixed pool of threads, one task per file.
+	 * Each file's matches are collected by its task as "file:line:text"
+	 * and written in one piece, in the order of files. At most a few
+	 * finished files per thread wait to be written. options.count
+	 * prints "file:count" for each file instead, options.limit applies
+	 * to each file separately, gzip files are decompressed, and files
+	 * that are not valid UTF-8 text are skipped.
+	 *
+	 * @param files
+	 * @param plan
+	 * @param options
+	 * @param out
+	 * @return matched
+	 */
+	static long search(List<Path> files, SearchPlan plan, SearchOptions options, OutputSink out)
+	{
+		int threads = (options.threads > 0) ? options.threads : Runtime.getRuntime().availableProcessors();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		Deque<Future<long[]>> pending = new ArrayDeque<>();
+		Deque<ByteArrayOutputStream> results = new ArrayDeque<>();
+		int window = threads * 4;
+		long matched = 0;
+
+		try
+		{
+			for (Path file : files)
+			{
+				if (out.closed)
+				{
+					break;
+				}
+
+				ByteArrayOutputStream result = new ByteArrayOutputStream();
+
+				pending.add(pool.submit(() -> search(file, plan, options, result)));
+				results.add(result);
+
+				if (pending.size() >= window)
+				{
+					matched += emit(pending.remove(), results.remove(), out);
+				}
+			}
+
+			while (!(pending.isEmpty()))
+			{
+				matched += emit(pending.remove(), results.remove(), out);
+			}
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+
+		return matched;
+	}
+
+	private static long emit(Future<long[]> task, ByteArrayOutputStream result, OutputSink out)
+	{
+		try
+		{
+			long[] matched = task.get();
+
+			out.append(result.toByteArray());
+
+			return matched[0];
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(ie);
+		}
+		catch (ExecutionException ee)
+		{
+			throw new IllegalStateException(ee.getCause());
+		}
+	}
+
+	/**
+	 * Searches one file with the streaming engine, numbering its lines
+	 *
+	 * @param file
+	 * @param plan
+	 * @param options
+	 * @param result
+	 * @return matched
+	 */
+	static long[] search(Path file, SearchPlan plan, SearchOptions options, ByteArrayOutputStream result)
+	{
+		long[] matched = { 0 };
+		long[] number = { 0 };
+		String name = file.toString();
+
+		try (OutputSink sink = new OutputSink(Channels.newChannel(result), FlushPolicy.END, 1 << 12);
+				BufferedReader reader = CompressedInput.newBufferedReader(file, 1))
+		{
+			String line;
+
+			while ((matched[0] < options.limit) && ((line = reader.readLine()) != null))
+			{
+				number[0]++;
+
+				if (plan.matches(line))
+				{
+					matched[0]++;
+
+					if (!(options.count))
+					{
+						sink.write(name + ":" + number[0] + ":" + plan.apply(line));
+					}
+				}
+			}
+
+			if (options.count)
+			{
+				sink.write(name + ":" + matched[0]);
+			}
+		}
+		catch (CharacterCodingException cce)
+		{
+			// binary or otherwise not text; drop whatever was collected
+			result.reset();
+			matched[0] = 0;
+		}
+		catch (IOException ioe)
+		{
+			System.err.println("Error reading file " + name + ": " + ioe);
+			result.reset();
+			matched[0] = 0;
+		}
+
+		return matched;
+	}
+}
+
+class FollowSearch
+{
+	static final long POLL_MILLIS = 250;
+	static final int READ_SIZE = 1 << 16;
+
+	final Path path;
+	final SearchPlan plan;
+	final OutputSink out;
+	final long limit;
+	long matched = 0;
+	FileChannel channel = null;
+	Object fileKey = null;
+	long position = 0;
+	ByteBuffer pending = ByteBuffer.allocate(READ_SIZE);
+
+	/**
+	 * Searches path like "tail -f": every line already in the file, then
+	 * each line appended to it, until limit lines have matched or the
+	 * process is stopped. Only complete lines are evaluated; a partial
+	 * last line waits for its terminator. Output is flushed after every
+	 * batch of new lines.
+	 *
+	 * @param path
+	 * @param plan
+	 * @param limit
+	 * @param out
+	 */
+	FollowSearch(Path path, SearchPlan plan, long limit, OutputSink out)
+	{
+		this.path = path;
+		this.plan = plan;
+		this.limit = limit;
+		this.out = out;
+	}
+
+	/**
+	 * Reads new data whenever the file's directory reports a change, and
+	 * at least every POLL_MILLIS in case the file system does not
+	 * report changes
+	 */
+	void run() throws IOException, InterruptedException
+	{
+		Path directory = path.toAbsolutePath().getParent();
+
+		try (WatchService watcher = path.getFileSystem().newWatchService())
+		{
+			directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+			open();
+
+			while (poll())
+			{
+				WatchKey key = watcher.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+
+				if (key != null)
+				{
+					key.pollEvents();
+					key.reset();
+				}
+			}
+		}
+		finally
+		{
+			if (channel != null)
+			{
+				channel.close();
+			}
+		}
+	}
+
+	private void open() throws IOException
+	{
+		channel = FileChannel.open(path, StandardOpenOption.READ);
+		fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+		position = 0;
+		pending.clear();
+	}
+
+	/**
+	 * Handles rotation (path now names a different file) by finishing
+	 * the old file and starting the new one from its beginning, and
+	 * truncation (the file got shorter) by starting over from the
+	 * beginning. Returns false once limit lines have matched.
+	 *
+	 * @return keepFollowing
+	 */
+	boolean poll() throws IOException
+	{
+		Object currentKey;
+
+		try
+		{
+			currentKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+		}
+		catch (NoSuchFileException nsfe)
+		{
+			// rotated away and not yet recreated; keep reading the old file
+			return readNew();
+		}
+
+		if ((currentKey != null) && !(currentKey.equals(fileKey)))
+		{
+			if (!(readNew()) || !(emit(pending.position())))
+			{
+				return false;
+			}
+
+			channel.close();
+			open();
+		}
+		else if (channel.size() < position)
+		{
+			position = 0;
+			pending.clear();
+		}
+
+		return readNew();
+	}
+
+	private boolean readNew() throws IOException
+	{
+		try
+		{
+			while (position < channel.size())
+			{
+				if (!(pending.hasRemaining()))
+				{
+					pending = ByteBuffer.allocate(pending.capacity() * 2).put(pending.flip());
+				}
+
+				int read = channel.read(pending, position);
+
+				if (read <= 0)
+				{
+					break;
+				}
+
+				position += read;
+
+				if (!(emit(lastLineEnd())))
+				{
+					return false;
+				}
+			}
+		}
+		finally
+		{
+			out.flush();
+		}
+
+		return true;
+	}
+
+	private int lastLineEnd()
+	{
+		for (int i = pending.position() - 1; i >= 0; i--)
+		{
+			if (pending.get(i) == '\n')
+			{
+				return i + 1;
+			}
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Searches pending[0, end) and keeps the rest for the next read
+	 *
+	 * @param end
+	 * @return keepFollowing
+	 */
+	private boolean emit(int end)
+	{
+		boolean more = MappedSearch.scan(pending, 0, end, plan, (buf, start, lineEnd, ascii) ->
+		{
+			plan.write(buf, start, lineEnd, ascii, out);
+			return (++matched < limit) && !(out.closed);
+		});
+
+		pending.flip().position(end);
+		pending.compact();
+
+		return more;
+	}
+}
+
+enum FlushPolicy
+{
+	FULL, LINE, END
+}
+
+class OutputSink implements LineHandler, AutoCloseable
+{
+	static final int DEFAULT_BUFFER = 1 << 16;
+	static final int MAX_BUFFER = 1 << 28;
+
+	final WritableByteChannel channel;
+	final FlushPolicy policy;
+	final Charset charset;
+	final boolean asciiCompatible;
+	final byte[] separator;
+	byte[] buffer;
+	int position = 0;
+	long bytesWritten = 0;
+	long writeNanos = 0;
+	/** Set once a write fails, e.g. when the reader of a pipe has exited */
+	volatile boolean closed = false;
+
+	/**
+	 * Collects output lines in a reusable byte buffer and writes them to
+	 * the channel in batches. FULL writes whenever the buffer fills, LINE
+	 * after every line, and END grows the buffer (up to MAX_BUFFER) so
+	 * output is written once on close.
+	 *
+	 * @param channel
+	 * @param policy
+	 * @param bufferSize
+	 */
+	OutputSink(WritableByteChannel channel, FlushPolicy policy, int bufferSize)
+	{
+		this.channel = channel;
+		this.policy = policy;
+		this.charset = Charset.defaultCharset();
+		this.asciiCompatible = charset.equals(StandardCharsets.UTF_8)
+				|| charset.equals(StandardCharsets.US_ASCII)
+				|| charset.equals(StandardCharsets.ISO_8859_1);
+		this.separator = System.lineSeparator().getBytes(charset);
+		this.buffer = new byte[bufferSize];
+	}
+
+	/**
+	 * Opens a sink on standard output, flushing every line when
+	 * attached to a terminal unless a policy is given
+	 *
+	 * @param policy
+	 * @param bufferSize
+	 * @return sink
+	 */
+	static OutputSink stdout(FlushPolicy policy, int bufferSize)
+	{
+		if (policy == null)
+		{
+			policy = (System.console() != null) ? FlushPolicy.LINE : FlushPolicy.FULL;
+		}
+
+		return new OutputSink(new FileOutputStream(FileDescriptor.out).getChannel(), policy, bufferSize);
+	}
+
+	public boolean handle(String line)
+	{
+		write(line);
+		return !(closed);
+	}
+
+	synchronized void write(String line)
+	{
+		int length = line.length();
+
+		if (asciiCompatible && reserve(length))
+		{
+			int i = 0;
+
+			// encode the ASCII prefix in place, which is usually the whole line
+			while ((i < length) && (line.charAt(i) < 0x80))
+			{
+				buffer[position + i] = (byte) line.charAt(i);
+				i++;
+			}
+
+			if (i == length)
+			{
+				position += length;
+				endLine();
+				return;
+			}
+		}
+
+		put(line.getBytes(charset));
+		endLine();
+	}
+
+	/**
+	 * Writes chars[0, length) as a line without building a String when
+	 * it is all ASCII
+	 *
+	 * @param chars
+	 * @param length
+	 */
+	synchronized void write(char[] chars, int length)
+	{
+		if (asciiCompatible && reserve(length))
+		{
+			int i = 0;
+
+			while ((i < length) && (chars[i] < 0x80))
+			{
+				buffer[position + i] = (byte) chars[i];
+				i++;
+			}
+
+			if (i == length)
+			{
+				position += length;
+				endLine();
+				return;
+			}
+		}
+
+		put(new String(chars, 0, length).getBytes(charset));
+		endLine();
+	}
+
+	/**
+	 * Writes an ASCII line straight from the input buffer
+	 *
+	 * @param buf
+	 * @param start
+	 * @param end
+	 */
+	synchronized void write(ByteBuffer buf, int start, int end)
+	{
+		if (!(asciiCompatible))
+		{
+			write(ByteLines.decode(buf, start, end, true));
+			return;
+		}
+
+		int length = end - start;
+
+		if (reserve(length))
+		{
+			buf.get(start, buffer, position, length);
+			position += length;
+		}
+		else
+		{
+			byte[] bytes = new byte[length];
+
+			buf.get(start, bytes);
+			put(bytes);
+		}
+
+		endLine();
+	}
+
+	private void endLine()
+	{
+		put(separator);
+
+		if (policy == FlushPolicy.LINE)
+		{
+			flush();
+		}
+	}
+
+	private void put(byte[] bytes)
+	{
+		if (reserve(bytes.length))
+		{
+			System.arraycopy(bytes, 0, buffer, position, bytes.length);
+			position += bytes.length;
+		}
+		else
+		{
+			flush();
+			drain(ByteBuffer.wrap(bytes));
+		}
+	}
+
+	/**
+	 * Makes room for length more bytes, returning false if they can
+	 * never fit in the buffer
+	 *
+	 * @param length
+	 * @return fits
+	 */
+	private boolean reserve(int length)
+	{
+		if (buffer.length - position >= length)
+		{
+			return true;
+		}
+
+		if ((policy == FlushPolicy.END) && (buffer.length < MAX_BUFFER))
+		{
+			long grown = Math.max((long) buffer.length * 2, (long) position + length);
+
+			buffer = Arrays.copyOf(buffer, (int) Math.min(grown, MAX_BUFFER));
+
+			if (buffer.length - position >= length)
+			{
+				return true;
+			}
+		}
+
+		flush();
+
+		return (buffer.length >= length);
+	}
+
+	/**
+	 * Writes bytes that already hold whole encoded lines
+	 *
+	 * @param bytes
+	 */
+	synchronized void append(byte[] bytes)
+	{
+		put(bytes);
+
+		if (policy == FlushPolicy.LINE)
+		{
+			flush();
+		}
+	}
+
+	synchronized void flush()
+	{
+		drain(ByteBuffer.wrap(buffer, 0, position));
+		position = 0;
+	}
+
+	/**
+	 * Writes bytes to the channel. If that fails the sink is marked
+	 * closed and this and all later output is dropped, so a closed pipe
+	 * ends the search quietly, as System.out did.
+	 *
+	 * @param bytes
+	 */
+	private void drain(ByteBuffer bytes)
+	{
+		if (closed)
+		{
+			return;
+		}
+
+		long start = System.nanoTime();
+
+		bytesWritten += bytes.remaining();
+
+		try
+		{
+			while (bytes.hasRemaining())
+			{
+				channel.write(bytes);
+			}
+
+			writeNanos += System.nanoTime() - start;
+		}
+		catch (IOException ioe)
+		{
+			closed = true;
+		}
+	}
+
+	public void close()
+	{
+		flush();
+	}
+}
+
+class KeywordAutomaton
+{
+	final String[] keywords;
+	final int[] lengths;
+	final List<Map<Character, Integer>> children = new ArrayList<>();
+	int[] fail;
+	int[] ascii;
+	long[] output;
+
+	/**
+	 * Builds an Aho-Corasick automaton over up to 64 keywords. Each state's
+	 * output is a bit mask of the keywords that end there, and ASCII
+	 * transitions are precomputed into a dense table.
+	 *
+	 * @param keywords
+	 */
+	KeywordAutomaton(String[] keywords)
+	{
+		this.keywords = keywords;
+		this.lengths = new int[keywords.length];
+
+		List<Long> outputs = new ArrayList<>();
+
+		children.add(new HashMap<>());
+		outputs.add(0L);
+
+		for (int k = 0; k < keywords.length; k++)
+		{
+			int state = 0;
+
+			lengths[k] = keywords[k].length();
+
+			for (char c : keywords[k].toCharArray())
+			{
+				Integer next = children.get(state).get(c);
+
+				if (next == null)
+				{
+					next = children.size();
+					children.get(state).put(c, next);
+					children.add(new HashMap<>());
+					outputs.add(0L);
+				}
+
+				state = next;
+			}
+
+			outputs.set(state, outputs.get(state) | (1L << k));
+		}
+
+		int states = children.size();
+
+		this.fail = new int[states];
+		this.ascii = new int[states << 7];
+		this.output = new long[states];
+
+		Deque<Integer> queue = new ArrayDeque<>();
+
+		queue.add(0);
+
+		// breadth-first, so a state's failure target is always finished first
+		while (!(queue.isEmpty()))
+		{
+			int state = queue.poll();
+
+			output[state] = outputs.get(state) | ((state == 0) ? 0 : output[fail[state]]);
+
+			for (int c = 0; c < 128; c++)
+			{
+				Integer next = children.get(state).get((char) c);
+
+				if (next != null)
+				{
+					ascii[(state << 7) | c] = next;
+				}
+				else
+				{
+					ascii[(state << 7) | c] = (state == 0) ? 0 : ascii[(fail[state] << 7) | c];
+				}
+			}
+
+			for (Map.Entry<Character, Integer> child : children.get(state).entrySet())
+			{
+				int next = child.getValue();
+
+				fail[next] = (state == 0) ? 0 : next(fail[state], child.getKey());
+				queue.add(next);
+			}
+		}
+	}
+
+	int next(int state, char c)
+	{
+		if (c < 128)
+		{
+			return ascii[(state << 7) | c];
+		}
+
+		while (true)
+		{
+			Integer next = children.get(state).get(c);
+
+			if (next != null)
+			{
+				return next;
+			}
+
+			if (state == 0)
+			{
+				return 0;
+			}
+
+			state = fail[state];
+		}
+	}
+}
+
+class MultiKeywordQuery implements Query, ByteQuery
+{
+	static final int MAX_KEYWORDS = 64;
+
+	final Query[] grouped;
+	final KeywordAutomaton automaton;
+	final boolean any;
+	long containsMask = 0;
+	long startsMask = 0;
+	long endsMask = 0;
+	long positiveMask = 0;
+	long negatedMask = 0;
+	int maxStartLength = 0;
+
+	/**
+	 * Combines Contains, StartsWith and EndsWith queries (possibly wrapped
+	 * in Not) so that one automaton pass over a line decides all of them
+	 *
+	 * @param grouped
+	 */
+	MultiKeywordQuery(Query[] grouped)
+	{
+		this(grouped, false);
+	}
+
+	/**
+	 * Like MultiKeywordQuery(Query[]), but if any is true a line matches
+	 * when it matches any one of the grouped queries, none of which may
+	 * be negated
+	 *
+	 * @param grouped
+	 * @param any
+	 */
+	MultiKeywordQuery(Query[] grouped, boolean any)
+	{
+		this.grouped = grouped;
+		this.any = any;
+
+		String[] keywords = new String[grouped.length];
+
+		for (int k = 0; k < grouped.length; k++)
+		{
+			Query query = grouped[k];
+			long bit = 1L << k;
+
+			if (query instanceof Not)
+			{
+				negatedMask |= bit;
+				query = ((Not) query).query;
+			}
+			else
+			{
+				positiveMask |= bit;
+			}
+
+			if (query instanceof Contains)
+			{
+				containsMask |= bit;
+				keywords[k] = ((Contains) query).keyword;
+			}
+			else if (query instanceof StartsWith)
+			{
+				startsMask |= bit;
+				keywords[k] = ((StartsWith) query).keyword;
+				maxStartLength = Math.max(maxStartLength, keywords[k].length());
+			}
+			else
+			{
+				endsMask |= bit;
+				keywords[k] = ((EndsWith) query).keyword;
+			}
+		}
+
+		this.automaton = new KeywordAutomaton(keywords);
+	}
+
+	/**
+	 * Replaces the keyword queries in qArray with a single
+	 * MultiKeywordQuery when there are at least two of them and one is a
+	 * Contains, keeping the other queries in their original order
+	 *
+	 * @param qArray
+	 * @return grouped
+	 */
+	static Query[] group(Query[] qArray)
+	{
+		qArray = qArray.clone();
+
+		for (int i = 0; i < qArray.length; i++)
+		{
+			if (qArray[i] instanceof Or)
+			{
+				qArray[i] = groupOr((Or) qArray[i]);
+			}
+		}
+
+		List<Query> keywordQueries = new ArrayList<>();
+		List<Query> others = new ArrayList<>();
+		int firstKeyword = -1;
+		boolean hasContains = false;
+
+		for (Query query : qArray)
+		{
+			Query inner = (query instanceof Not) ? ((Not) query).query : query;
+			String keyword = keywordOf(inner);
+
+			if ((keyword != null) && !(keyword.isEmpty()) && (keywordQueries.size() < MAX_KEYWORDS))
+			{
+				if (firstKeyword < 0)
+				{
+					firstKeyword = others.size();
+				}
+
+				keywordQueries.add(query);
+				hasContains |= (inner instanceof Contains);
+			}
+			else
+			{
+				others.add(query);
+			}
+		}
+
+		if ((keywordQueries.size() < 2) || !(hasContains))
+		{
+			return qArray;
+		}
+
+		others.add(firstKeyword, new MultiKeywordQuery(keywordQueries.toArray(new Query[0])));
+
+		return others.toArray(new Query[0]);
+	}
+
+	/**
+	 * Groups the branches of or, and replaces or itself with one
+	 * automaton when every branch is a keyword query
+	 *
+	 * @param or
+	 * @return grouped
+	 */
+	static Query groupOr(Or or)
+	{
+		Query[] branches = new Query[or.queries.length];
+		boolean keywords = (branches.length <= MAX_KEYWORDS);
+
+		for (int i = 0; i < branches.length; i++)
+		{
+			Query branch = or.queries[i];
+			String keyword = keywordOf(branch);
+
+			keywords &= (keyword != null) && !(keyword.isEmpty());
+
+			if (branch instanceof And)
+			{
+				Query[] members = group(((And) branch).queries);
+
+				branch = (members.length == 1) ? members[0] : new And(members);
+			}
+			else if (branch instanceof Or)
+			{
+				branch = groupOr((Or) branch);
+			}
+
+			branches[i] = branch;
+		}
+
+		return keywords ? new MultiKeywordQuery(branches, true) : new Or(branches);
+	}
+
+	static String keywordOf(Query query)
+	{
+		if (query instanceof Contains)
+		{
+			return ((Contains) query).keyword;
+		}
+		else if (query instanceof StartsWith)
+		{
+			return ((StartsWith) query).keyword;
+		}
+		else if (query instanceof EndsWith)
+		{
+			return ((EndsWith) query).keyword;
+		}
+
+		return null;
+	}
+
+	public boolean matches(String str)
+	{
+		int state = 0;
+		long hits = 0;
+		int length = str.length();
+
+		for (int i = 0; i < length; i++)
+		{
+			state = automaton.next(state, str.charAt(i));
+
+			long out = automaton.output[state];
+
+			if (out != 0)
+			{
+				hits |= hitsAt(out, i + 1);
+
+				if (decided(hits))
+				{
+					return decide(hits);
+				}
+			}
+		}
+
+		return decide(hits | (automaton.output[state] & endsMask));
+	}
+
+	public boolean matches(ByteBuffer buf, int start, int end)
+	{
+		int state = 0;
+		long hits = 0;
+
+		for (int i = start; i < end; i++)
+		{
+			state = automaton.next(state, (char) buf.get(i));
+
+			long out = automaton.output[state];
+
+			if (out != 0)
+			{
+				hits |= hitsAt(out, i + 1 - start);
+
+				if (decided(hits))
+				{
+					return decide(hits);
+				}
+			}
+		}
+
+		return decide(hits | (automaton.output[state] & endsMask));
+	}
+
+	/**
+	 * Returns which keywords in out count as hits when they end at
+	 * position: any Contains, and StartsWith only if it began at 0
+	 *
+	 * @param out
+	 * @param position
+	 * @return hits
+	 */
+	private long hitsAt(long out, int position)
+	{
+		long hits = out & containsMask;
+		long starts = out & startsMask;
+
+		if ((starts != 0) && (position <= maxStartLength))
+		{
+			for (long bits = starts; bits != 0; bits &= bits - 1)
+			{
+				int k = Long.numberOfTrailingZeros(bits);
+
+				if (automaton.lengths[k] == position)
+				{
+					hits |= 1L << k;
+				}
+			}
+		}
+
+		return hits;
+	}
+
+	/**
+	 * Returns true once the rest of the line cannot change the result:
+	 * a negated keyword was found, or every keyword was found and none
+	 * depends on where the line ends
+	 *
+	 * @param hits
+	 * @return decided
+	 */
+	private boolean decided(long hits)
+	{
+		if (any)
+		{
+			return ((hits & positiveMask) != 0);
+		}
+
+		return ((hits & negatedMask) != 0)
+				|| ((negatedMask == 0) && (endsMask == 0) && ((hits & positiveMask) == positiveMask));
+	}
+
+	private boolean decide(long hits)
+	{
+		if (any)
+		{
+			return ((hits & positiveMask) != 0);
+		}
+
+		return ((hits & positiveMask) == positiveMask) && ((hits & negatedMask) == 0);
+	}
+
+	public String toString()
+	{
+		if (any)
+		{
+			return "keywords(" + new Or(grouped) + ")";
+		}
+
+		return "keywords(" + QueryPlanner.join(grouped) + ")";
+	}
+}
+
+class QueryPlanner
+{
+	/**
+	 * Estimates the relative cost of one evaluation of query on a
+	 * typical line. Length checks are constant time, anchored keyword
+	 * checks look at a few chars, and Contains scans the whole line.
+	 *
+	 * @param query
+	 * @return cost
+	 */
+	static double cost(Query query)
+	{
+		if ((query instanceof Length) || (query instanceof GreaterThan) || (query instanceof LessThan)
+				|| (query instanceof LengthRange))
+		{
+			return 1;
+		}
+		else if (query instanceof StartsAndEndsWith)
+		{
+			return cost(((StartsAndEndsWith) query).prefix) + cost(((StartsAndEndsWith) query).suffix);
+		}
+		else if (query instanceof StartsWith)
+		{
+			return 2 + (((StartsWith) query).keyword.length() / 8.0);
+		}
+		else if (query instanceof EndsWith)
+		{
+			return 2 + (((EndsWith) query).keyword.length() / 8.0);
+		}
+		else if (query instanceof Contains)
+		{
+			return 10;
+		}
+		else if (query instanceof MultiKeywordQuery)
+		{
+			return 12 + ((MultiKeywordQuery) query).grouped.length;
+		}
+		else if (query instanceof Matches)
+		{
+			return (((Matches) query).prefilter != null) ? 15 : 50;
+		}
+		else if (query instanceof Not)
+		{
+			return cost(((Not) query).query);
+		}
+		else if (query instanceof CountedQuery)
+		{
+			return cost(((CountedQuery) query).query);
+		}
+		else if ((query instanceof And) || (query instanceof Or))
+		{
+			double cost = 0;
+
+			for (Query child : (query instanceof And) ? ((And) query).queries : ((Or) query).queries)
+			{
+				cost += cost(child);
+			}
+
+			return cost;
+		}
+
+		return 20;
+	}
+
+	static String join(Query[] qArray)
+	{
+		StringJoiner joined = new StringJoiner("&");
+
+		for (Query query : qArray)
+		{
+			joined.add((query instanceof Or) ? "(" + query + ")" : String.valueOf(query));
+		}
+
+		return joined.toString();
+	}
+}
+
+class AdaptiveQuery implements Query, ByteQuery
+{
+	static final int SAMPLE_LINES = 1024;
+
+	final Query[] predicates;
+	final double[] costs;
+	final long[] passed;
+	volatile Query[] order;
+	volatile boolean sampling;
+	long sampled = 0;
+
+	/**
+	 * Evaluates the conjunction of predicates, cheapest first. The first
+	 * SAMPLE_LINES lines evaluate every predicate to measure how often
+	 * each one passes; after that the predicates are reordered by cost
+	 * divided by rejection rate, so cheap and selective checks
+	 * short-circuit first.
+	 *
+	 * @param predicates
+	 */
+	AdaptiveQuery(Query[] predicates)
+	{
+		this.predicates = predicates;
+		this.costs = new double[predicates.length];
+		this.passed = new long[predicates.length];
+
+		for (int i = 0; i < predicates.length; i++)
+		{
+			costs[i] = QueryPlanner.cost(predicates[i]);
+		}
+
+		Integer[] byCost = indexes();
+
+		Arrays.sort(byCost, Comparator.comparingDouble(i -> costs[i]));
+		this.order = select(byCost);
+		this.sampling = (predicates.length > 1);
+	}
+
+	public boolean matches(String str)
+	{
+		if (sampling)
+		{
+			synchronized (this)
+			{
+				if (sampling)
+				{
+					boolean[] results = new boolean[predicates.length];
+
+					for (int i = 0; i < predicates.length; i++)
+					{
+						results[i] = predicates[i].matches(str);
+					}
+
+					return record(results);
+				}
+			}
+		}
+
+		for (Query query : order)
+		{
+			if (!(query.matches(str)))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	public boolean matches(ByteBuffer buf, int start, int end)
+	{
+		if (sampling)
+		{
+			synchronized (this)
+			{
+				if (sampling)
+				{
+					boolean[] results = new boolean[predicates.length];
+
+					for (int i = 0; i < predicates.length; i++)
+					{
+						results[i] = ByteLines.matches(predicates[i], buf, start, end);
+					}
+
+					return record(results);
+				}
+			}
+		}
+
+		for (Query query : order)
+		{
+			if (!(ByteLines.matches(query, buf, start, end)))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private boolean record(boolean[] results)
+	{
+		boolean all = true;
+
+		for (int i = 0; i < results.length; i++)
+		{
+			if (results[i])
+			{
+				passed[i]++;
+			}
+
+			all &= results[i];
+		}
+
+		if (++sampled >= SAMPLE_LINES)
+		{
+			reorder();
+		}
+
+		return all;
+	}
+
+	/**
+	 * Sorts predicates by expected cost per rejected line, which is the
+	 * best order for a conjunction of independent checks
+	 */
+	private void reorder()
+	{
+		Integer[] ranked = indexes();
+
+		Arrays.sort(ranked, Comparator.comparingDouble(this::rank));
+		this.order = select(ranked);
+		this.sampling = false;
+	}
+
+	private double rank(int i)
+	{
+		double rejectRate = 1.0 - (passed[i] / (double) Math.max(1, sampled));
+
+		return costs[i] / Math.max(rejectRate, 1e-6);
+	}
+
+	private Integer[] indexes()
+	{
+		Integer[] indexes = new Integer[predicates.length];
+
+		for (int i = 0; i < indexes.length; i++)
+		{
+			indexes[i] = i;
+		}
+
+		return indexes;
+	}
+
+	private Query[] select(Integer[] indexes)
+	{
+		Query[] selected = new Query[indexes.length];
+
+		for (int i = 0; i < indexes.length; i++)
+		{
+			selected[i] = predicates[indexes[i]];
+		}
+
+		return selected;
+	}
+
+	/**
+	 * Returns the current evaluation order with each predicate's cost
+	 * estimate and sampled pass rate, one per line
+	 *
+	 * @return plan
+	 */
+	synchronized String describe()
+	{
+		String basis = (sampled == 0) ? "by cost"
+				: (sampling ? "by cost, sampled " : "adapted after ") + sampled + " lines";
+		StringBuilder plan = new StringBuilder("Query plan (" + basis + "):");
+
+		for (Query query : order)
+		{
+			int i = Arrays.asList(predicates).indexOf(query);
+
+			plan.append(String.format("%n  %s  cost=%.1f", query, costs[i]));
+
+			if (sampled > 0)
+			{
+				plan.append(String.format("  pass=%.3f", passed[i] / (double) sampled));
+			}
+		}
+
+		return plan.toString();
+	}
+}
+
+class IntList
+{
+	int[] values = new int[4];
+	int size = 0;
+
+	void add(int value)
+	{
+		if (size == values.length)
+		{
+			values = Arrays.copyOf(values, size * 2);
+		}
+
+		values[size++] = value;
+	}
+
+	int last()
+	{
+		return (size == 0) ? -1 : values[size - 1];
+	}
+
+	int[] toArray()
+	{
+		return Arrays.copyOf(values, size);
+	}
+}
+
+class SearchIndex
+{
+	static final int MAGIC = 0x53534958;
+	static final int VERSION = 4;
+	static final String SUFFIX = ".ssidx";
+
+	/** Sections of the index file, in the order of its section table */
+	static final int LINE_STARTS = 0;
+	static final int TRIGRAM_KEYS = 1;
+	static final int POSTING_OFFSETS = 2;
+	static final int POSTINGS = 3;
+	static final int LENGTH_KEYS = 4;
+	static final int BUCKET_OFFSETS = 5;
+	static final int BUCKETS = 6;
+	static final int BY_PREFIX = 7;
+	static final int BY_SUFFIX = 8;
+	static final int SECTIONS = 9;
+
+	final String path;
+	final long size;
+	final long modified;
+	final int lines;
+	final ByteBuffer[] sections;
+	final LongBuffer wideLineStarts;
+	final IntBuffer lineStarts;
+	final IntBuffer trigramKeys;
+	final IntBuffer postingOffsets;
+	final ByteBuffer postings;
+	final IntBuffer lengthKeys;
+	final IntBuffer bucketOffsets;
+	final IntBuffer buckets;
+	final IntBuffer byPrefix;
+	final IntBuffer bySuffix;
+
+	/**
+	 * Creates an index over the given sections, which are either the heap
+	 * buffers of a freshly built index or read-only mappings of the
+	 * sections of an index file. Nothing is copied or decoded here; each
+	 * lookup reads only the part of a section it needs.
+	 *
+	 * @param path
+	 * @param size
+	 * @param modified
+	 * @param sections
+	 */
+	SearchIndex(String path, long size, long modified, ByteBuffer[] sections)
+	{
+		this.path = path;
+		this.size = size;
+		this.modified = modified;
+		this.sections = sections;
+		this.wideLineStarts = wide(size) ? sections[LINE_STARTS].duplicate().asLongBuffer() : null;
+		this.lineStarts = wide(size) ? null : sections[LINE_STARTS].duplicate().asIntBuffer();
+		this.trigramKeys = sections[TRIGRAM_KEYS].duplicate().asIntBuffer();
+		this.postingOffsets = sections[POSTING_OFFSETS].duplicate().asIntBuffer();
+		this.postings = sections[POSTINGS].duplicate();
+		this.lengthKeys = sections[LENGTH_KEYS].duplicate().asIntBuffer();
+		this.bucketOffsets = sections[BUCKET_OFFSETS].duplicate().asIntBuffer();
+		this.buckets = sections[BUCKETS].duplicate().asIntBuffer();
+		this.byPrefix = sections[BY_PREFIX].duplicate().asIntBuffer();
+		this.bySuffix = sections[BY_SUFFIX].duplicate().asIntBuffer();
+		this.lines = sections[LINE_STARTS].limit() / (wide(size) ? Long.BYTES : Integer.BYTES);
+	}
+
+	/**
+	 * Returns whether line starts in a file of this size need eight
+	 * bytes rather than four
+	 *
+	 * @param size
+	 * @return wide
+	 */
+	static boolean wide(long size)
+	{
+		return size > Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Maps the index stored next to the file, or builds and stores a new
+	 * one if it is missing or was built for a different size,
+	 * modification time or format version
+	 *
+	 * @param file
+	 * @param path
+	 * @return index
+	 */
+	static SearchIndex open(MappedFile file, Path path) throws IOException
+	{
+		return open(file, path, true);
+	}
+
+	/**
+	 * Like open(MappedFile, Path), but builds the index in memory only,
+	 * without writing a file, unless save is set
+	 *
+	 * @param file
+	 * @param path
+	 * @param save
+	 * @return index
+	 */
+	static SearchIndex open(MappedFile file, Path path, boolean save) throws IOException
+	{
+		String key = path.toAbsolutePath().normalize().toString();
+		long modified = Files.getLastModifiedTime(path).toMillis();
+		Path indexPath = Paths.get(path + SUFFIX);
+
+		if (Files.exists(indexPath))
+		{
+			try
+			{
+				SearchIndex index = read(indexPath, key, file.size, modified);
+
+				if (index != null)
+				{
+					return index;
+				}
+			}
+			catch (IOException ioe)
+			{
+				System.err.println("Rebuilding index " + indexPath + ": " + ioe);
+			}
+		}
+
+		SearchIndex index = build(file, key, modified);
+
+		if (!(save))
+		{
+			return index;
+		}
+
+		try
+		{
+			index.write(indexPath);
+		}
+		catch (IOException ioe)
+		{
+			System.err.println("Could not save index " + indexPath + ": " + ioe);
+		}
+
+		return index;
+	}
+
+	/**
+	 * Scans every line of file once, recording where it starts, its
+	 * length in chars and which byte trigrams it contains, then sorts
+	 * the lines by their bytes and by their reversed bytes
+	 *
+	 * @param file
+	 * @param path
+	 * @param modified
+	 * @return index
+	 */
+	static SearchIndex build(MappedFile file, String path, long modified) throws IOException
+	{
+		List<Long> starts = new ArrayList<>();
+		Map<Integer, IntList> postings = new HashMap<>();
+		TreeMap<Integer, IntList> buckets = new TreeMap<>();
+
+		for (int s = 0; s < file.segments.size(); s++)
+		{
+			ByteBuffer segment = file.segments.get(s);
+			long base = file.segmentOffsets.get(s);
+			int limit = segment.limit();
+
+			for (int start = 0; start < limit; )
+			{
+				int end = ByteLines.lineEnd(segment, start, limit);
+				int line = starts.size();
+
+				starts.add(base + start);
+
+				int length = ByteLines.isAscii(segment, start, end) ? (end - start)
+						: ByteLines.decode(segment, start, end, false).length();
+
+				buckets.computeIfAbsent(length, key -> new IntList()).add(line);
+
+				for (int i = start; i + 3 <= end; i++)
+				{
+					IntList posting = postings.computeIfAbsent(trigram(segment, i), key -> new IntList());
+
+					if (posting.last() != line)
+					{
+						posting.add(line);
+					}
+				}
+
+				start = ByteLines.nextLine(segment, end, limit);
+			}
+		}
+
+		long[] lineStarts = starts.stream().mapToLong(Long::longValue).toArray();
+		int[] keys = postings.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+		int[] offsets = new int[keys.length];
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(encoded);
+
+		for (int i = 0; i < keys.length; i++)
+		{
+			offsets[i] = out.size();
+			writeIds(out, postings.get(keys[i]).toArray());
+		}
+
+		int[] lengths = new int[buckets.size()];
+		int[] bucketOffsets = new int[buckets.size() + 1];
+		IntList bucketed = new IntList();
+		int n = 0;
+
+		for (Map.Entry<Integer, IntList> bucket : buckets.entrySet())
+		{
+			lengths[n] = bucket.getKey();
+			bucketOffsets[n++] = bucketed.size;
+
+			for (int i = 0; i < bucket.getValue().size; i++)
+			{
+				bucketed.add(bucket.getValue().values[i]);
+			}
+		}
+
+		bucketOffsets[n] = bucketed.size;
+
+		ByteBuffer[] sections = new ByteBuffer[SECTIONS];
+
+		if (wide(file.size))
+		{
+			sections[LINE_STARTS] = ByteBuffer.allocate(lineStarts.length * Long.BYTES);
+			sections[LINE_STARTS].asLongBuffer().put(lineStarts);
+		}
+		else
+		{
+			sections[LINE_STARTS] = ints(Arrays.stream(lineStarts).mapToInt(start -> (int) start).toArray());
+		}
+
+		sections[TRIGRAM_KEYS] = ints(keys);
+		sections[POSTING_OFFSETS] = ints(offsets);
+		sections[POSTINGS] = ByteBuffer.wrap(encoded.toByteArray());
+		sections[LENGTH_KEYS] = ints(lengths);
+		sections[BUCKET_OFFSETS] = ints(bucketOffsets);
+		sections[BUCKETS] = ints(bucketed.toArray());
+		sections[BY_PREFIX] = ints(sortLines(file, lineStarts, false));
+		sections[BY_SUFFIX] = ints(sortLines(file, lineStarts, true));
+
+		return new SearchIndex(path, file.size, modified, sections);
+	}
+
+	private static ByteBuffer ints(int[] values)
+	{
+		ByteBuffer buf = ByteBuffer.allocate(values.length * Integer.BYTES);
+
+		buf.asIntBuffer().put(values);
+
+		return buf;
+	}
+
+	private static int[] sortLines(MappedFile file, long[] lineStarts, boolean reversed)
+	{
+		int count = lineStarts.length;
+		ByteBuffer[] buffers = new ByteBuffer[count];
+		int[] starts = new int[count];
+		int[] ends = new int[count];
+		Integer[] ids = new Integer[count];
+
+		for (int line = 0; line < count; line++)
+		{
+			int segment = file.segmentOf(lineStarts[line]);
+
+			buffers[line] = file.segments.get(segment);
+			starts[line] = (int) (lineStarts[line] - file.segmentOffsets.get(segment));
+			ends[line] = ByteLines.lineEnd(buffers[line], starts[line], buffers[line].limit());
+			ids[line] = line;
+		}
+
+		Arrays.sort(ids, (a, b) ->
+		{
+			int lengthA = ends[a] - starts[a];
+			int lengthB = ends[b] - starts[b];
+
+			for (int i = 0; i < Math.min(lengthA, lengthB); i++)
+			{
+				int byteA = buffers[a].get(reversed ? ends[a] - 1 - i : starts[a] + i) & 0xFF;
+				int byteB = buffers[b].get(reversed ? ends[b] - 1 - i : starts[b] + i) & 0xFF;
+
+				if (byteA != byteB)
+				{
+					return byteA - byteB;
+				}
+			}
+
+			return lengthA - lengthB;
+		});
+
+		return Arrays.stream(ids).mapToInt(Integer::intValue).toArray();
+	}
+
+	/**
+	 * Returns the offset in the file at which line starts
+	 *
+	 * @param line
+	 * @return offset
+	 */
+	long lineStart(int line)
+	{
+		return (lineStarts != null) ? lineStarts.get(line) : wideLineStarts.get(line);
+	}
+
+	/**
+	 * Returns the ascending ids of the lines that start with prefix (or,
+	 * if reversed, end with it), found by binary search over the sorted
+	 * line order
+	 *
+	 * @param file
+	 * @param keyword
+	 * @param reversed
+	 * @return lines
+	 */
+	int[] linesWithAffix(MappedFile file, String keyword, boolean reversed)
+	{
+		byte[] key = keyword.getBytes(StandardCharsets.UTF_8);
+		IntBuffer order = reversed ? bySuffix : byPrefix;
+		int from = firstLine(file, order, key, reversed, false);
+		int to = firstLine(file, order, key, reversed, true);
+		int[] lines = new int[to - from];
+
+		order.get(from, lines);
+		Arrays.sort(lines);
+
+		return lines;
+	}
+
+	/**
+	 * Returns the first position in order whose line sorts after key
+	 * (or at or after key, unless past is set), comparing only the
+	 * first key.length bytes of each line
+	 */
+	private int firstLine(MappedFile file, IntBuffer order, byte[] key, boolean reversed, boolean past)
+	{
+		int low = 0;
+		int high = order.limit();
+
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			int compared = compareAffix(file, order.get(mid), key, reversed);
+
+			if ((compared < 0) || (past && (compared == 0)))
+			{
+				low = mid + 1;
+			}
+			else
+			{
+				high = mid;
+			}
+		}
+
+		return low;
+	}
+
+	private int compareAffix(MappedFile file, int line, byte[] key, boolean reversed)
+	{
+		long offset = lineStart(line);
+		int segment = file.segmentOf(offset);
+		ByteBuffer buf = file.segments.get(segment);
+		int start = (int) (offset - file.segmentOffsets.get(segment));
+		int end = ByteLines.lineEnd(buf, start, buf.limit());
+		int length = end - start;
+
+		for (int i = 0; i < Math.min(length, key.length); i++)
+		{
+			int b = buf.get(reversed ? end - 1 - i : start + i) & 0xFF;
+			int k = key[reversed ? key.length - 1 - i : i] & 0xFF;
+
+			if (b != k)
+			{
+				return b - k;
+			}
+		}
+
+		return (length < key.length) ? -1 : 0;
+	}
+
+	static int trigram(ByteBuffer buf, int i)
+	{
+		return ((buf.get(i) & 0xFF) << 16) | ((buf.get(i + 1) & 0xFF) << 8) | (buf.get(i + 2) & 0xFF);
+	}
+
+	static int trigram(byte[] bytes, int i)
+	{
+		return ((bytes[i] & 0xFF) << 16) | ((bytes[i + 1] & 0xFF) << 8) | (bytes[i + 2] & 0xFF);
+	}
+
+	/**
+	 * Returns the ascending ids of the lines containing trigram key,
+	 * decoding only that key's postings
+	 *
+	 * @param key
+	 * @return lines
+	 */
+	int[] posting(int key)
+	{
+		int slot = search(trigramKeys, key);
+
+		if (slot < 0)
+		{
+			return new int[0];
+		}
+
+		return readIds(postings.duplicate().position(postingOffsets.get(slot)));
+	}
+
+	/**
+	 * Returns the ascending ids of the lines that contain every trigram
+	 * of every keyword, or null if no keyword is long enough to narrow
+	 * the search
+	 *
+	 * @param keywords
+	 * @return candidates
+	 */
+	int[] candidates(List<String> keywords)
+	{
+		List<int[]> lists = new ArrayList<>();
+		Set<Integer> seen = new HashSet<>();
+
+		for (String keyword : keywords)
+		{
+			byte[] bytes = keyword.getBytes(StandardCharsets.UTF_8);
+
+			for (int i = 0; i + 3 <= bytes.length; i++)
+			{
+				int key = trigram(bytes, i);
+
+				if (seen.add(key))
+				{
+					lists.add(posting(key));
+				}
+			}
+		}
+
+		if (lists.isEmpty())
+		{
+			return null;
+		}
+
+		lists.sort(Comparator.comparingInt(list -> list.length));
+
+		int[] result = lists.get(0);
+
+		for (int i = 1; (i < lists.size()) && (result.length > 0); i++)
+		{
+			result = intersect(result, lists.get(i));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns how many lines have a length in [min, max], answered from
+	 * the bucket offsets alone
+	 *
+	 * @param min
+	 * @param max
+	 * @return count
+	 */
+	long count(int min, int max)
+	{
+		if (min > max)
+		{
+			return 0;
+		}
+
+		return bucketOffsets.get(firstKey(lengthKeys, max, true)) - bucketOffsets.get(firstKey(lengthKeys, min, false));
+	}
+
+	/**
+	 * Returns the ascending ids of the lines with a length in [min, max]
+	 *
+	 * @param min
+	 * @param max
+	 * @return lines
+	 */
+	int[] linesWithLength(int min, int max)
+	{
+		if (min > max)
+		{
+			return new int[0];
+		}
+
+		int from = bucketOffsets.get(firstKey(lengthKeys, min, false));
+		int to = bucketOffsets.get(firstKey(lengthKeys, max, true));
+		int[] lines = new int[to - from];
+
+		buckets.get(from, lines);
+		Arrays.sort(lines);
+
+		return lines;
+	}
+
+	/**
+	 * Returns the slot of key in the ascending keys, or -1 if absent
+	 */
+	private static int search(IntBuffer keys, int key)
+	{
+		int slot = firstKey(keys, key, false);
+
+		return ((slot < keys.limit()) && (keys.get(slot) == key)) ? slot : -1;
+	}
+
+	/**
+	 * Returns the first slot in the ascending keys holding a key after
+	 * key (or at or after key, unless past is set)
+	 */
+	private static int firstKey(IntBuffer keys, int key, boolean past)
+	{
+		int low = 0;
+		int high = keys.limit();
+
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			int compared = Integer.compare(keys.get(mid), key);
+
+			if ((compared < 0) || (past && (compared == 0)))
+			{
+				low = mid + 1;
+			}
+			else
+			{
+				high = mid;
+			}
+		}
+
+		return low;
+	}
+
+	static int[] intersect(int[] a, int[] b)
+	{
+		int[] result = new int[Math.min(a.length, b.length)];
+		int n = 0;
+
+		for (int i = 0, j = 0; (i < a.length) && (j < b.length); )
+		{
+			if (a[i] < b[j])
+			{
+				i++;
+			}
+			else if (a[i] > b[j])
+			{
+				j++;
+			}
+			else
+			{
+				result[n++] = a[i];
+				i++;
+				j++;
+			}
+		}
+
+		return Arrays.copyOf(result, n);
+	}
+
+	static int[] union(int[] a, int[] b)
+	{
+		int[] result = new int[a.length + b.length];
+		int n = 0;
+		int i = 0;
+		int j = 0;
+
+		while ((i < a.length) && (j < b.length))
+		{
+			if (a[i] < b[j])
+			{
+				result[n++] = a[i++];
+			}
+			else if (a[i] > b[j])
+			{
+				result[n++] = b[j++];
+			}
+			else
+			{
+				result[n++] = a[i++];
+				j++;
+			}
+		}
+
+		while (i < a.length)
+		{
+			result[n++] = a[i++];
+		}
+
+		while (j < b.length)
+		{
+			result[n++] = b[j++];
+		}
+
+		return Arrays.copyOf(result, n);
+	}
+
+	/**
+	 * Writes the index to a temporary file next to indexPath and moves
+	 * it into place, so that processes which have the old index mapped
+	 * keep reading a complete file. The file starts with a header and a
+	 * table giving the offset and length of each section.
+	 *
+	 * @param indexPath
+	 */
+	void write(Path indexPath) throws IOException
+	{
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(header);
+
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeUTF(path);
+		out.writeLong(size);
+		out.writeLong(modified);
+		out.writeInt(sections.length);
+
+		long offset = out.size() + (long) sections.length * 2 * Long.BYTES;
+
+		for (ByteBuffer section : sections)
+		{
+			out.writeLong(offset);
+			out.writeLong(section.limit());
+			offset += section.limit();
+		}
+
+		Path temp = Paths.get(indexPath + "." + ProcessHandle.current().pid() + ".tmp");
+
+		try
+		{
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+			{
+				writeFully(channel, ByteBuffer.wrap(header.toByteArray()));
+
+				for (ByteBuffer section : sections)
+				{
+					writeFully(channel, section.duplicate().clear());
+				}
+			}
+
+			Files.move(temp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally
+		{
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException
+	{
+		while (buf.hasRemaining())
+		{
+			channel.write(buf);
+		}
+	}
+
+	/**
+	 * Reads the header and section table of an index file and maps its
+	 * sections, returning null if it was built for another file, size,
+	 * modification time or format version
+	 *
+	 * @param indexPath
+	 * @param path
+	 * @param size
+	 * @param modified
+	 * @return index
+	 */
+	static SearchIndex read(Path indexPath, String path, long size, long modified) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ))
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+
+			if ((in.readInt() != MAGIC) || (in.readInt() != VERSION) || !(in.readUTF().equals(path))
+					|| (in.readLong() != size) || (in.readLong() != modified))
+			{
+				return null;
+			}
+
+			if (in.readInt() != SECTIONS)
+			{
+				throw new IOException("expected " + SECTIONS + " sections");
+			}
+
+			ByteBuffer[] sections = new ByteBuffer[SECTIONS];
+
+			for (int i = 0; i < SECTIONS; i++)
+			{
+				long offset = in.readLong();
+				long length = in.readLong();
+
+				if ((offset < 0) || (length < 0) || (offset + length > channel.size()))
+				{
+					throw new IOException("section " + i + " is out of bounds");
+				}
+
+				sections[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+			}
+
+			return new SearchIndex(path, size, modified, sections);
+		}
+	}
+
+	static void writeIds(DataOutputStream out, int[] ids) throws IOException
+	{
+		int previous = 0;
+
+		writeVarLong(out, ids.length);
+
+		for (int id : ids)
+		{
+			writeVarLong(out, id - previous);
+			previous = id;
+		}
+	}
+
+	static void writeVarLong(DataOutputStream out, long value) throws IOException
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+
+		out.writeByte((int) value);
+	}
+
+	static long readVarLong(DataInputStream in) throws IOException
+	{
+		long value = 0;
+
+		for (int shift = 0; ; shift += 7)
+		{
+			int b = in.readUnsignedByte();
+
+			value |= (long) (b & 0x7F) << shift;
+
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+	}
+
+	static int[] readIds(ByteBuffer in)
+	{
+		int[] ids = new int[(int) readVarLong(in)];
+		int previous = 0;
+
+		for (int i = 0; i < ids.length; i++)
+		{
+			previous += (int) readVarLong(in);
+			ids[i] = previous;
+		}
+
+		return ids;
+	}
+
+	static long readVarLong(ByteBuffer in)
+	{
+		long value = 0;
+
+		for (int shift = 0; ; shift += 7)
+		{
+			int b = in.get() & 0xFF;
+
+			value |= (long) (b & 0x7F) << shift;
+
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+	}
+}
+
+class QueryLiterals
+{
+	/**
+	 * Returns the keywords that every matching line must contain, taken
+	 * from the positive Contains, StartsWith and EndsWith predicates of a
+	 * conjunction
+	 *
+	 * @param qArray
+	 * @return keywords
+	 */
+	static List<String> required(Query[] qArray)
+	{
+		List<String> keywords = new ArrayList<>();
+
+		for (Query query : qArray)
+		{
+			addRequired(query, keywords);
+		}
+
+		return keywords;
+	}
+
+	static void addRequired(Query query, List<String> keywords)
+	{
+		String keyword = MultiKeywordQuery.keywordOf(query);
+
+		if (keyword != null)
+		{
+			keywords.add(keyword);
+		}
+		else if (query instanceof StartsAndEndsWith)
+		{
+			keywords.add(((StartsAndEndsWith) query).prefix.keyword);
+			keywords.add(((StartsAndEndsWith) query).suffix.keyword);
+		}
+		else if ((query instanceof Matches) && !(((Matches) query).literal.isEmpty()))
+		{
+			keywords.add(((Matches) query).literal);
+		}
+		else if ((query instanceof MultiKeywordQuery) && !(((MultiKeywordQuery) query).any))
+		{
+			for (Query grouped : ((MultiKeywordQuery) query).grouped)
+			{
+				addRequired(grouped, keywords);
+			}
+		}
+		else if (query instanceof And)
+		{
+			for (Query member : ((And) query).queries)
+			{
+				addRequired(member, keywords);
+			}
+		}
+	}
+
+	/**
+	 * Returns the branches of a disjunction (an Or, or a grouped one),
+	 * each as a conjunction, or null if query is not a disjunction
+	 *
+	 * @param query
+	 * @return branches
+	 */
+	static Query[][] alternatives(Query query)
+	{
+		Query[] branches = null;
+
+		if (query instanceof Or)
+		{
+			branches = ((Or) query).queries;
+		}
+		else if ((query instanceof MultiKeywordQuery) && ((MultiKeywordQuery) query).any)
+		{
+			branches = ((MultiKeywordQuery) query).grouped;
+		}
+
+		if (branches == null)
+		{
+			return null;
+		}
+
+		Query[][] alternatives = new Query[branches.length][];
+
+		for (int i = 0; i < branches.length; i++)
+		{
+			alternatives[i] = (branches[i] instanceof And) ? ((And) branches[i]).queries : new Query[]{ branches[i] };
+		}
+
+		return alternatives;
+	}
+}
+
+class IndexedSearch
+{
+	/**
+	 * Searches file using the index to visit only lines that can match:
+	 * those in the sorted prefix or suffix range of a StartsWith or
+	 * EndsWith keyword, those containing the plan's required keywords,
+	 * those that may match some branch of each disjunction and, when the
+	 * length range is selective, those in the qualifying length buckets. Each candidate is checked with the full plan, in
+	 * file order. Falls back to a full scan when nothing narrows the
+	 * search.
+	 *
+	 * @param file
+	 * @param index
+	 * @param plan
+	 * @param handler
+	 */
+	static void search(MappedFile file, SearchIndex index, SearchPlan plan, ByteLineHandler handler)
+	{
+		int[] candidates = candidates(file, index, plan.queries);
+		LengthRange range = lengthRange(plan.queries);
+
+		if ((range != null) && (index.count(range.min, range.max) < index.lines / 2))
+		{
+			int[] lengthCandidates = index.linesWithLength(range.min, range.max);
+
+			candidates = (candidates == null) ? lengthCandidates : SearchIndex.intersect(candidates, lengthCandidates);
+		}
+
+		if (candidates == null)
+		{
+			MappedSearch.search(file, plan, handler);
+			return;
+		}
+
+		for (int line : candidates)
+		{
+			if (!(visit(file, index.lineStart(line), plan, handler, true)))
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the lines that may match the conjunction qArray according
+	 * to its keywords, anchored keywords and disjunctions, or null if
+	 * none of them narrows the search
+	 *
+	 * @param file
+	 * @param index
+	 * @param qArray
+	 * @return candidates
+	 */
+	static int[] candidates(MappedFile file, SearchIndex index, Query[] qArray)
+	{
+		int[] candidates = index.candidates(QueryLiterals.required(qArray));
+
+		for (Query query : anchored(qArray))
+		{
+			boolean reversed = (query instanceof EndsWith);
+			String keyword = MultiKeywordQuery.keywordOf(query);
+			int[] affixCandidates = index.linesWithAffix(file, keyword, reversed);
+
+			candidates = (candidates == null) ? affixCandidates : SearchIndex.intersect(candidates, affixCandidates);
+		}
+
+		for (Query query : qArray)
+		{
+			int[] anyCandidates = disjunction(file, index, query);
+
+			if (anyCandidates != null)
+			{
+				candidates = (candidates == null) ? anyCandidates : SearchIndex.intersect(candidates, anyCandidates);
+			}
+		}
+
+		return candidates;
+	}
+
+	/**
+	 * Returns the lines that may match a disjunction: the union of each
+	 * branch's candidates. Returns null if query is not a disjunction or
+	 * if the index cannot narrow some branch.
+	 *
+	 * @param file
+	 * @param index
+	 * @param query
+	 * @return candidates
+	 */
+	static int[] disjunction(MappedFile file, SearchIndex index, Query query)
+	{
+		Query[][] alternatives = QueryLiterals.alternatives(query);
+
+		if (alternatives == null)
+		{
+			return null;
+		}
+
+		int[] union = new int[0];
+
+		for (Query[] branch : alternatives)
+		{
+			int[] candidates = candidates(file, index, branch);
+
+			if (candidates == null)
+			{
+				return null;
+			}
+
+			union = SearchIndex.union(union, candidates);
+		}
+
+		return union;
+	}
+
+	/**
+	 * Returns the number of lines matching plan if the index can answer
+	 * it without reading any line (no predicates, or only a length
+	 * range), or -1 otherwise
+	 *
+	 * @param index
+	 * @param plan
+	 * @return count
+	 */
+	static long count(SearchIndex index, SearchPlan plan)
+	{
+		if (plan.queries.length == 0)
+		{
+			return index.lines;
+		}
+
+		if ((plan.queries.length == 1) && (plan.queries[0] instanceof LengthRange))
+		{
+			return index.count(((LengthRange) plan.queries[0]).min, ((LengthRange) plan.queries[0]).max);
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Passes the line starting at offset to handler, if it matches plan
+	 * or verify is false. Returns false if handler asked to stop.
+	 *
+	 * @param file
+	 * @param offset
+	 * @param plan
+	 * @param handler
+	 * @param verify
+	 * @return keepScanning
+	 */
+	static boolean visit(MappedFile file, long offset, SearchPlan plan, ByteLineHandler handler, boolean verify)
+	{
+		int segment = file.segmentOf(offset);
+		ByteBuffer buf = file.segments.get(segment);
+		int start = (int) (offset - file.segmentOffsets.get(segment));
+		int end = ByteLines.lineEnd(buf, start, buf.limit());
+		boolean ascii = ByteLines.isAscii(buf, start, end);
+		boolean matched = !(verify) || (ascii ? ByteLines.matches(plan.query, buf, start, end)
+				: plan.matches(ByteLines.decode(buf, start, end, false)));
+
+		return !(matched) || handler.handle(buf, start, end, ascii);
+	}
+
+	/**
+	 * Returns the positive StartsWith and EndsWith predicates of a
+	 * conjunction, including those inside combined queries
+	 *
+	 * @param qArray
+	 * @return anchored
+	 */
+	static List<Query> anchored(Query[] qArray)
+	{
+		List<Query> anchored = new ArrayList<>();
+
+		for (Query query : qArray)
+		{
+			if ((query instanceof StartsWith) || (query instanceof EndsWith))
+			{
+				anchored.add(query);
+			}
+			else if (query instanceof StartsAndEndsWith)
+			{
+				anchored.add(((StartsAndEndsWith) query).prefix);
+				anchored.add(((StartsAndEndsWith) query).suffix);
+			}
+			else if ((query instanceof MultiKeywordQuery) && !(((MultiKeywordQuery) query).any))
+			{
+				anchored.addAll(anchored(((MultiKeywordQuery) query).grouped));
+			}
+		}
+
+		return anchored;
+	}
+
+	static LengthRange lengthRange(Query[] qArray)
+	{
+		for (Query query : qArray)
+		{
+			if (query instanceof LengthRange)
+			{
+				return (LengthRange) query;
+			}
+		}
+
+		return null;
+	}
+}
+
+class LoadedFile implements AutoCloseable
+{
+	final Path path;
+	final long size;
+	final long modified;
+	final MappedFile file;
+	final SearchIndex index;
+
+	/**
+	 * Maps the file at path and opens its index, storing a newly built
+	 * index next to the file only if save is set
+	 *
+	 * @param path
+	 * @param save
+	 */
+	LoadedFile(Path path, boolean save) throws IOException
+	{
+		this.path = path;
+		this.file = new MappedFile(path);
+		this.size = file.size;
+
+		try
+		{
+			this.modified = Files.getLastModifiedTime(path).toMillis();
+			this.index = SearchIndex.open(file, path, save);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			file.close();
+			throw e;
+		}
+	}
+
+	boolean isCurrent()
+	{
+		try
+		{
+			return (Files.size(path) == size) && (Files.getLastModifiedTime(path).toMillis() == modified);
+		}
+		catch (IOException ioe)
+		{
+			return false;
+		}
+	}
+
+	public void close() throws IOException
+	{
+		file.close();
+	}
+}
+
+class SearchServer
+{
+	final Map<String, LoadedFile> files = new ConcurrentHashMap<>();
+	final ResultCache cache = new ResultCache(null, ResultCache.DEFAULT_MAX_BYTES);
+	final ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * Returns a loopback TCP address for a port number, or a Unix domain
+	 * socket address for anything else
+	 *
+	 * @param address
+	 * @return socketAddress
+	 */
+	static SocketAddress address(String address)
+	{
+		if (address.matches("[0-9]+"))
+		{
+			return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address));
+		}
+
+		return UnixDomainSocketAddress.of(address);
+	}
+
+	/**
+	 * Loads the named file and its index, making it available to
+	 * clients. Only files loaded here, when the server starts, are ever
+	 * served.
+	 *
+	 * @param name
+	 */
+	void load(String name) throws IOException
+	{
+		files.put(name, new LoadedFile(Paths.get("./" + name), true));
+	}
+
+	/**
+	 * Returns the named file with its index, reloading it if it changed
+	 * on disk since it was loaded, or null if the server was not started
+	 * with that file. A reload keeps its index in memory, so no file is
+	 * written on behalf of a client.
+	 *
+	 * @param name
+	 * @return file
+	 */
+	LoadedFile lookup(String name) throws IOException
+	{
+		LoadedFile loaded = files.get(name);
+
+		if ((loaded == null) || loaded.isCurrent())
+		{
+			return loaded;
+		}
+
+		// one loader at a time, so concurrent requests don't map and index the same file twice
+		synchronized (files)
+		{
+			loaded = files.get(name);
+
+			if (!(loaded.isCurrent()))
+			{
+				LoadedFile stale = loaded;
+
+				loaded = new LoadedFile(stale.path, false);
+				files.put(name, loaded);
+
+				// searches still running on it keep their mappings, which outlive the channel
+				stale.close();
+			}
+		}
+
+		return loaded;
+	}
+
+	/**
+	 * Accepts connections until the process is stopped. Each connection
+	 * sends one request line of tab-separated file, query and transform
+	 * arguments, optionally followed by --count and --limit=N, and gets
+	 * back "ok" (or "error" and a message) followed by the result lines
+	 * or the count. A Unix domain socket file left behind by an
+	 * earlier server is replaced, and the new one is removed on exit.
+	 *
+	 * @param address
+	 */
+	void serve(String address) throws IOException
+	{
+		SocketAddress socketAddress = address(address);
+		ServerSocketChannel server = (socketAddress instanceof UnixDomainSocketAddress)
+				? ServerSocketChannel.open(StandardProtocolFamily.UNIX) : ServerSocketChannel.open();
+
+		if (socketAddress instanceof UnixDomainSocketAddress)
+		{
+			Path socketPath = ((UnixDomainSocketAddress) socketAddress).getPath();
+
+			Files.deleteIfExists(socketPath);
+			server.bind(socketAddress);
+			Runtime.getRuntime().addShutdownHook(new Thread(() ->
+			{
+				try
+				{
+					Files.deleteIfExists(socketPath);
+				}
+				catch (IOException ioe)
+				{
+					System.err.println("Could not remove " + socketPath + ": " + ioe);
+				}
+			}));
+		}
+		else
+		{
+			server.bind(socketAddress);
+		}
+
+		System.err.println("Serving " + files.keySet() + " on " + socketAddress);
+
+		while (true)
+		{
+			SocketChannel client = server.accept();
+
+			workers.submit(() -> handle(client));
+		}
+	}
+
+	void handle(SocketChannel client)
+	{
+		try (client; OutputSink out = new OutputSink(client, FlushPolicy.FULL, OutputSink.DEFAULT_BUFFER))
+		{
+			try
+			{
+				respond(client, out);
+			}
+			catch (RuntimeException re)
+			{
+				System.err.println("Request failed: " + re);
+				out.write("error " + re);
+			}
+		}
+		catch (IOException ioe)
+		{
+			System.err.println("Request failed: " + ioe);
+		}
+	}
+
+	/**
+	 * Reads one request from client and writes the response to out
+	 *
+	 * @param client
+	 * @param out
+	 */
+	void respond(SocketChannel client, OutputSink out) throws IOException
+	{
+		String request = readLine(Channels.newInputStream(client));
+		SearchOptions options = SearchOptions.parse((request == null) ? new String[0] : request.split("\t", -1));
+		List<String> args = options.positional;
+
+		if ((args.size() < 1) || (args.size() > 3))
+		{
+			out.write("error Expected <file>[\\t<query>[\\t<transform>]][\\t--count][\\t--limit=N]");
+			return;
+		}
+
+		SearchPlan plan = SearchPlan.compile((args.size() > 1) ? args.get(1) : null, (args.size() > 2) ? args.get(2) : null);
+		List<String> errors = new ArrayList<>(options.errors);
+
+		errors.addAll(unsupported(options));
+		errors.addAll(Arrays.asList(plan.errors));
+
+		if (!(errors.isEmpty()))
+		{
+			out.write("error " + String.join("; ", errors));
+			return;
+		}
+
+		LoadedFile loaded;
+
+		try
+		{
+			loaded = lookup(args.get(0));
+		}
+		catch (IOException ioe)
+		{
+			out.write("error Error reading file " + args.get(0) + ": " + ioe);
+			return;
+		}
+
+		if (loaded == null)
+		{
+			out.write("error Not served: " + args.get(0));
+			return;
+		}
+
+		out.write("ok");
+
+		long[] matched = { 0 };
+		long indexed = options.count ? IndexedSearch.count(loaded.index, plan) : -1;
+
+		if (plan.empty || (options.limit == 0))
+		{
+			// nothing to search, as in a local run
+		}
+		else if (indexed >= 0)
+		{
+			matched[0] = Math.min(indexed, options.limit);
+		}
+		else
+		{
+			cache.search(loaded.file, loaded.path, plan,
+					handler -> IndexedSearch.search(loaded.file, loaded.index, plan, handler),
+					StringSearch.printer(plan, options, matched, out));
+		}
+
+		if (options.count)
+		{
+			out.write(String.valueOf(matched[0]));
+		}
+	}
+
+	/**
+	 * Returns an error for each option in options that a server cannot
+	 * honour. Options that only choose how a local search runs are
+	 * allowed, since they do not change its results.
+	 *
+	 * @param options
+	 * @return errors
+	 */
+	static List<String> unsupported(SearchOptions options)
+	{
+		List<String> errors = new ArrayList<>();
+
+		if (options.showPlan)
+		{
+			errors.add("--plan is not supported with --connect");
+		}
+
+		if ((options.stats != null) || (options.statsFile != null))
+		{
+			errors.add("--stats is not supported with --connect");
+		}
+
+		if (options.cacheStats)
+		{
+			errors.add("--cache-stats is not supported with --connect");
+		}
+
+		if (options.follow)
+		{
+			errors.add("--follow is not supported with --connect");
+		}
+
+		if (!(options.files.isEmpty()))
+		{
+			errors.add("--file is not supported with --connect");
+		}
+
+		return errors;
+	}
+
+	/**
+	 * Sends one request to a running server, with the positional
+	 * arguments and the --count and --limit options, and copies the
+	 * results to standard output, stopping quietly if it is closed
+	 *
+	 * @param address
+	 * @param options
+	 */
+	static void request(String address, SearchOptions options) throws IOException
+	{
+		SocketAddress socketAddress = address(address);
+		List<String> fields = new ArrayList<>(options.positional);
+
+		if (options.count)
+		{
+			fields.add("--count");
+		}
+
+		if (options.limit != Long.MAX_VALUE)
+		{
+			fields.add("--limit=" + options.limit);
+		}
+
+		try (SocketChannel server = SocketChannel.open(socketAddress))
+		{
+			server.write(ByteBuffer.wrap((String.join("\t", fields) + "\n").getBytes(StandardCharsets.UTF_8)));
+
+			InputStream in = Channels.newInputStream(server);
+			String status = readLine(in);
+
+			if ((status == null) || !(status.equals("ok")))
+			{
+				System.err.println((status == null) ? "No response from " + address : status.substring(6));
+				return;
+			}
+
+			try (OutputSink out = OutputSink.stdout(options.flush, options.bufferSize))
+			{
+				byte[] chunk = new byte[OutputSink.DEFAULT_BUFFER];
+				int n;
+
+				while (!(out.closed) && ((n = in.read(chunk)) >= 0))
+				{
+					out.append(Arrays.copyOf(chunk, n));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads one '\n'-terminated line without reading past it
+	 *
+	 * @param in
+	 * @return line
+	 */
+	static String readLine(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+
+		while (((b = in.read()) >= 0) && (b != '\n'))
+		{
+			line.write(b);
+		}
+
+		if ((b < 0) && (line.size() == 0))
+		{
+			return null;
+		}
+
+		String text = line.toString(StandardCharsets.UTF_8);
+
+		return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+	}
+}
+
+interface ByteSearch
+{
+	void search(ByteLineHandler handler);
+}
+
+class ResultCache
+{
+	static final int MAGIC = 0x53535243;
+	static final int VERSION = 1;
+	static final long DEFAULT_MAX_BYTES = 64L << 20;
+	static final int ENTRY_OVERHEAD = 64;
+	static final int SAMPLE_BYTES = 1 << 16;
+
+	final Path store;
+	final long maxBytes;
+	final LinkedHashMap<String, long[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+	long bytes = 0;
+	long hits = 0;
+	long misses = 0;
+	long evictions = 0;
+
+	/**
+	 * Creates a least-recently-used cache of matching line offsets,
+	 * evicting entries once they take more than maxBytes. If directory
+	 * is not null, entries are loaded from and saved to a file there.
+	 *
+	 * @param directory
+	 * @param maxBytes
+	 */
+	ResultCache(Path directory, long maxBytes)
+	{
+		this.store = (directory == null) ? null : directory.resolve("results.cache");
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Identifies a file by its absolute path, size, modification time
+	 * and a CRC32 of its first and last 64 KB, so an edited file does
+	 * not reuse stale results
+	 *
+	 * @param file
+	 * @param path
+	 * @return fingerprint
+	 */
+	static String fingerprint(MappedFile file, Path path) throws IOException
+	{
+		CRC32 crc = new CRC32();
+
+		if (!(file.segments.isEmpty()))
+		{
+			ByteBuffer first = file.segments.get(0);
+			ByteBuffer last = file.segments.get(file.segments.size() - 1);
+
+			crc.update(first.duplicate().position(0).limit(Math.min(SAMPLE_BYTES, first.limit())));
+			crc.update(last.duplicate().position(Math.max(0, last.limit() - SAMPLE_BYTES)));
+		}
+
+		return path.toAbsolutePath().normalize() + ":" + file.size + ":"
+				+ Files.getLastModifiedTime(path).toMillis() + ":" + Long.toHexString(crc.getValue());
+	}
+
+	/**
+	 * Returns the normalized predicates of plan in sorted order, so
+	 * queries that differ only in clause order share an entry.
+	 * Disjunctions are parenthesized as in QueryPlanner.join, so queries
+	 * that group differently never share one. The transforms are not
+	 * part of the key because they are applied again to the cached
+	 * lines.
+	 *
+	 * @param plan
+	 * @return canonical
+	 */
+	static String canonical(SearchPlan plan)
+	{
+		Query[] predicates = plan.queries.clone();
+
+		Arrays.sort(predicates, Comparator.comparing(String::valueOf));
+
+		return QueryPlanner.join(predicates);
+	}
+
+	synchronized long[] get(String key)
+	{
+		long[] offsets = entries.get(key);
+
+		if (offsets == null)
+		{
+			misses++;
+		}
+		else
+		{
+			hits++;
+		}
+
+		return offsets;
+	}
+
+	synchronized void put(String key, long[] offsets)
+	{
+		long weight = weight(key, offsets);
+
+		if (weight > maxBytes)
+		{
+			return;
+		}
+
+		long[] previous = entries.put(key, offsets);
+
+		if (previous != null)
+		{
+			bytes -= weight(key, previous);
+		}
+
+		bytes += weight;
+
+		Iterator<Map.Entry<String, long[]>> eldest = entries.entrySet().iterator();
+
+		while (bytes > maxBytes)
+		{
+			Map.Entry<String, long[]> entry = eldest.next();
+
+			bytes -= weight(entry.getKey(), entry.getValue());
+			evictions++;
+			eldest.remove();
+		}
+	}
+
+	static long weight(String key, long[] offsets)
+	{
+		return ENTRY_OVERHEAD + (2L * key.length()) + (8L * offsets.length);
+	}
+
+	/**
+	 * Passes plan's matching lines of file to handler, from the cache if
+	 * present. Otherwise engine runs and the offsets of the lines it
+	 * reports are stored, unless handler stopped it early.
+	 *
+	 * @param file
+	 * @param path
+	 * @param plan
+	 * @param engine
+	 * @param handler
+	 */
+	void search(MappedFile file, Path path, SearchPlan plan, ByteSearch engine, ByteLineHandler handler)
+			throws IOException
+	{
+		String key = fingerprint(file, path) + "\u0000" + canonical(plan);
+		long[] cached = get(key);
+
+		if (cached != null)
+		{
+			for (long offset : cached)
+			{
+				if (!(IndexedSearch.visit(file, offset, plan, handler, false)))
+				{
+					return;
+				}
+			}
+
+			return;
+		}
+
+		List<Long> offsets = new ArrayList<>();
+		boolean[] complete = { true };
+
+		engine.search((buf, start, end, ascii) ->
+		{
+			offsets.add(file.baseOf(buf) + start);
+
+			if (!(handler.handle(buf, start, end, ascii)))
+			{
+				complete[0] = false;
+				return false;
+			}
+
+			return true;
+		});
+
+		if (complete[0])
+		{
+			put(key, offsets.stream().mapToLong(Long::longValue).toArray());
+		}
+	}
+
+	void load()
+	{
+		if ((store == null) || !(Files.exists(store)))
+		{
+			return;
+		}
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(store))))
+		{
+			if ((in.readInt() != MAGIC) || (in.readInt() != VERSION))
+			{
+				return;
+			}
+
+			int count = in.readInt();
+
+			for (int i = 0; i < count; i++)
+			{
+				String key = in.readUTF();
+				long[] offsets = new long[(int) SearchIndex.readVarLong(in)];
+				long previous = 0;
+
+				for (int j = 0; j < offsets.length; j++)
+				{
+					previous += SearchIndex.readVarLong(in);
+					offsets[j] = previous;
+				}
+
+				put(key, offsets);
+			}
+		}
+		catch (IOException ioe)
+		{
+			System.err.println("Ignoring result cache " + store + ": " + ioe);
+		}
+	}
+
+	synchronized void save()
+	{
+		if (store == null)
+		{
+			return;
+		}
+
+		try
+		{
+			Files.createDirectories(store.toAbsolutePath().getParent());
+
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(store))))
+			{
+				List<Map.Entry<String, long[]>> saved = new ArrayList<>();
+
+				for (Map.Entry<String, long[]> entry : entries.entrySet())
+				{
+					if (entry.getKey().getBytes(StandardCharsets.UTF_8).length < 65536)
+					{
+						saved.add(entry);
+					}
+				}
+
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(saved.size());
+
+				for (Map.Entry<String, long[]> entry : saved)
+				{
+					long previous = 0;
+
+					out.writeUTF(entry.getKey());
+					SearchIndex.writeVarLong(out, entry.getValue().length);
+
+					for (long offset : entry.getValue())
+					{
+						SearchIndex.writeVarLong(out, offset - previous);
+						previous = offset;
+					}
+				}
+			}
+		}
+		catch (IOException ioe)
+		{
+			System.err.println("Could not save result cache " + store + ": " + ioe);
+		}
+	}
+
+	synchronized String stats()
+	{
+		return String.format("Result cache: %d hits, %d misses, %d evictions, %d entries, %d bytes",
+				hits, misses, evictions, entries.size(), bytes);
+	}
+}
+
+class QueryCompiler
+{
+	static final AtomicInteger GENERATED = new AtomicInteger();
+
+	/**
+	 * Returns a plan whose predicates and transforms run in one generated
+	 * hidden class, with each step written out as straight-line code so
+	 * the JIT sees a single monomorphic method per search. The class is
+	 * compiled from generated source with the system Java compiler and
+	 * defined through MethodHandles.Lookup.defineHiddenClass. If no
+	 * compiler is available or compilation fails, plan is returned as is.
+	 *
+	 * @param plan
+	 * @return compiled
+	 */
+	static SearchPlan compile(SearchPlan plan)
+	{
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+
+		if (compiler == null)
+		{
+			System.err.println("No Java compiler available; running the query interpreted");
+			return plan;
+		}
+
+		Query[] predicates = plan.queries.clone();
+
+		Arrays.sort(predicates, Comparator.comparingDouble(QueryPlanner::cost));
+
+		String name = "GeneratedSearch" + GENERATED.incrementAndGet();
+		String source = source(name, predicates, plan.transforms);
+
+		try
+		{
+			byte[] bytes = compileClass(compiler, name, source);
+			MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+			MethodHandle constructor = lookup.findConstructor(lookup.lookupClass(),
+					MethodType.methodType(void.class, Object[].class, Object[].class, String.class));
+			Query query = (Query) constructor.invoke(predicates, plan.transforms, QueryPlanner.join(predicates));
+			Transform[] transforms = plan.transforms;
+
+			if (transforms.length > 0)
+			{
+				StringJoiner steps = new StringJoiner("&");
+
+				for (Transform transform : transforms)
+				{
+					steps.add(String.valueOf(transform));
+				}
+
+				transforms = new Transform[]{ (Transform) constructor.invoke(predicates, plan.transforms, steps.toString()) };
+			}
+
+			return new SearchPlan(plan.queries, query, transforms, plan.errors);
+		}
+		catch (Throwable t)
+		{
+			System.err.println("Could not compile query, running it interpreted: " + t);
+			return plan;
+		}
+	}
+
+	/**
+	 * Writes the source of a class implementing Query, ByteQuery,
+	 * Transform and BufferTransform for the given steps. Known predicates
+	 * and transforms are inlined; anything else is called through a
+	 * field of its own class type.
+	 *
+	 * @param name
+	 * @param predicates
+	 * @param transforms
+	 * @return source
+	 */
+	static String source(String name, Query[] predicates, Transform[] transforms)
+	{
+		StringBuilder fields = new StringBuilder();
+		StringBuilder init = new StringBuilder();
+		StringJoiner strings = new StringJoiner(" && ", "(", ")").setEmptyValue("true");
+		StringJoiner bytes = new StringJoiner(" && ", "(", ")").setEmptyValue("true");
+		StringBuilder transformString = new StringBuilder();
+		StringBuilder transformLine = new StringBuilder();
+
+		for (int i = 0; i < predicates.length; i++)
+		{
+			String type = predicates[i].getClass().getName();
+
+			fields.append(String.format("\tfinal %s q%d;%n", type, i));
+			init.append(String.format("\t\tthis.q%d = (%s) q[%d];%n", i, type, i));
+			strings.add(stringExpression(predicates[i], "q" + i));
+			bytes.add(byteExpression(predicates[i], "q" + i));
+		}
+
+		for (int i = 0; i < transforms.length; i++)
+		{
+			String type = transforms[i].getClass().getName();
+
+			fields.append(String.format("\tfinal %s t%d;%n", type, i));
+			init.append(String.format("\t\tthis.t%d = (%s) t[%d];%n", i, type, i));
+			transformString.append(String.format("\t\t%s%n", transformStatement(transforms[i], "t" + i)));
+
+			if (transforms[i] instanceof BufferTransform)
+			{
+				transformLine.append(String.format("\t\tif (!(t%1$d.transform(line))) line.set(t%1$d.transform(line.toString()));%n", i));
+			}
+			else
+			{
+				transformLine.append(String.format("\t\tline.set(t%d.transform(line.toString()));%n", i));
+			}
+		}
+
+		return "final class " + name + " implements Query, ByteQuery, Transform, BufferTransform\n"
+				+ "{\n"
+				+ fields
+				+ "\tfinal String description;\n\n"
+				+ "\tpublic " + name + "(Object[] q, Object[] t, String description)\n"
+				+ "\t{\n" + init + "\t\tthis.description = description;\n\t}\n\n"
+				+ "\tpublic boolean matches(String s)\n\t{\n\t\tint n = s.length();\n\t\treturn " + strings + ";\n\t}\n\n"
+				+ "\tpublic boolean matches(java.nio.ByteBuffer b, int start, int end)\n\t{\n"
+				+ "\t\tint n = end - start;\n\t\treturn " + bytes + ";\n\t}\n\n"
+				+ "\tpublic String transform(String s)\n\t{\n" + transformString + "\t\treturn s;\n\t}\n\n"
+				+ "\tpublic boolean transform(CharLine line)\n\t{\n" + transformLine + "\t\treturn true;\n\t}\n\n"
+				+ "\tpublic String toString()\n\t{\n\t\treturn description;\n\t}\n"
+				+ "}\n";
+	}
+
+	static String stringExpression(Query query, String field)
+	{
+		if ((query instanceof Length) || (query instanceof GreaterThan) || (query instanceof LessThan)
+				|| (query instanceof LengthRange))
+		{
+			return lengthExpression(query);
+		}
+		else if (query instanceof Contains)
+		{
+			return "s.contains(" + literal(((Contains) query).keyword) + ")";
+		}
+		else if (query instanceof StartsWith)
+		{
+			return "s.startsWith(" + literal(((StartsWith) query).keyword) + ")";
+		}
+		else if (query instanceof EndsWith)
+		{
+			return "s.endsWith(" + literal(((EndsWith) query).keyword) + ")";
+		}
+		else if (query instanceof StartsAndEndsWith)
+		{
+			return "(s.startsWith(" + literal(((StartsAndEndsWith) query).prefix.keyword) + ") && s.endsWith("
+					+ literal(((StartsAndEndsWith) query).suffix.keyword) + "))";
+		}
+		else if ((query instanceof Not) && isInlined(((Not) query).query))
+		{
+			return "!" + stringExpression(((Not) query).query, null);
+		}
+		else if (((query instanceof And) || (query instanceof Or)) && isInlined(query))
+		{
+			boolean and = (query instanceof And);
+			StringJoiner joined = new StringJoiner(and ? " && " : " || ", "(", ")");
+
+			for (Query child : and ? ((And) query).order : ((Or) query).order)
+			{
+				joined.add(stringExpression(child, null));
+			}
+
+			return joined.toString();
+		}
+
+		return field + ".matches(s)";
+	}
+
+	static String byteExpression(Query query, String field)
+	{
+		if ((query instanceof Length) || (query instanceof GreaterThan) || (query instanceof LessThan)
+				|| (query instanceof LengthRange))
+		{
+			return lengthExpression(query);
+		}
+
+		return (query instanceof ByteQuery) ? field + ".matches(b, start, end)"
+				: "ByteLines.matches(" + field + ", b, start, end)";
+	}
+
+	static boolean isInlined(Query query)
+	{
+		if ((query instanceof And) || (query instanceof Or))
+		{
+			for (Query child : (query instanceof And) ? ((And) query).queries : ((Or) query).queries)
+			{
+				if (!(isInlined(child)))
+				{
+					return false;
+				}
+			}
+
+			return true;
+		}
+		else if (query instanceof Not)
+		{
+			return isInlined(((Not) query).query);
+		}
+
+		return (query instanceof Length) || (query instanceof GreaterThan) || (query instanceof LessThan)
+				|| (query instanceof LengthRange) || (query instanceof Contains) || (query instanceof StartsWith)
+				|| (query instanceof EndsWith) || (query instanceof StartsAndEndsWith);
+	}
+
+	static String lengthExpression(Query query)
+	{
+		if (query instanceof Length)
+		{
+			return "(n > " + ((Length) query).length + ")";
+		}
+		else if (query instanceof GreaterThan)
+		{
+			return "(n > " + ((GreaterThan) query).value + ")";
+		}
+		else if (query instanceof LessThan)
+		{
+			return "(n < " + ((LessThan) query).value + ")";
+		}
+
+		return "(n >= " + ((LengthRange) query).min + " && n <= " + ((LengthRange) query).max + ")";
+	}
+
+	static String transformStatement(Transform transform, String field)
+	{
+		if (transform instanceof UpperCase)
+		{
+			return "s = s.toUpperCase();";
+		}
+		else if (transform instanceof LowerCase)
+		{
+			return "s = s.toLowerCase();";
+		}
+		else if (transform instanceof FirstLetters)
+		{
+			int n = ((FirstLetters) transform).nLetters;
+
+			return "if (s.length() >= " + n + ") s = s.substring(0, " + n + ");";
+		}
+		else if (transform instanceof LastLetters)
+		{
+			int n = ((LastLetters) transform).nLetters;
+
+			return "if (s.length() >= " + n + ") s = s.substring(s.length() - " + n + ");";
+		}
+
+		return "s = " + field + ".transform(s);";
+	}
+
+	/**
+	 * Returns str as a Java string literal
+	 *
+	 * @param str
+	 * @return literal
+	 */
+	static String literal(String str)
+	{
+		StringBuilder literal = new StringBuilder("\"");
+
+		for (char c : str.toCharArray())
+		{
+			if ((c == '"') || (c == '\\'))
+			{
+				literal.append('\\').append(c);
+			}
+			else if ((c < 0x20) || (c >= 0x7F))
+			{
+				literal.append(String.format("\\u%04x", (int) c));
+			}
+			else
+			{
+				literal.append(c);
+			}
+		}
+
+		return literal.append('"').toString();
+	}
+
+	/**
+	 * Compiles one class from source in memory against the running
+	 * class path and returns its class file bytes
+	 *
+	 * @param compiler
+	 * @param name
+	 * @param source
+	 * @return bytes
+	 */
+	static byte[] compileClass(JavaCompiler compiler, String name, String source) throws IOException
+	{
+		ByteArrayOutputStream classFile = new ByteArrayOutputStream();
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+		JavaFileObject input = new SimpleJavaFileObject(URI.create("string:///" + name + ".java"), JavaFileObject.Kind.SOURCE)
+		{
+			public CharSequence getCharContent(boolean ignoreEncodingErrors)
+			{
+				return source;
+			}
+		};
+
+		try (StandardJavaFileManager standard = compiler.getStandardFileManager(diagnostics, null, null))
+		{
+			JavaFileManager manager = new ForwardingJavaFileManager<JavaFileManager>(standard)
+			{
+				public JavaFileObject getJavaFileForOutput(Location location, String className,
+						JavaFileObject.Kind kind, FileObject sibling)
+				{
+					return new SimpleJavaFileObject(URI.create("bytes:///" + className + ".class"), kind)
+					{
+						public OutputStream openOutputStream()
+						{
+							return classFile;
+						}
+					};
+				}
+			};
+			List<String> compileOptions = Arrays.asList("-classpath", System.getProperty("java.class.path"),
+					"-proc:none", "-nowarn");
+
+			if (!(compiler.getTask(null, manager, diagnostics, compileOptions, null, List.of(input)).call()))
+			{
+				throw new IOException("Generated source did not compile: " + diagnostics.getDiagnostics());
+			}
+		}
+
+		return classFile.toByteArray();
+	}
+}
+
+class CountedQuery implements Query, ByteQuery
+{
+	final Query query;
+	final LongAdder evaluated = new LongAdder();
+	final LongAdder rejected = new LongAdder();
+
+	/**
+	 * Counts how often query is evaluated and how often it rejects
+	 * the line
+	 *
+	 * @param query
+	 */
+	CountedQuery(Query query)
+	{
+		this.query = query;
+	}
+
+	public boolean matches(String str)
+	{
+		return count(query.matches(str));
+	}
+
+	public boolean matches(ByteBuffer buf, int start, int end)
+	{
+		return count(ByteLines.matches(query, buf, start, end));
+	}
+
+	private boolean count(boolean matched)
+	{
+		evaluated.increment();
+
+		if (!(matched))
+		{
+			rejected.increment();
+		}
+
+		return matched;
+	}
+
+	public String toString()
+	{
+		return String.valueOf(query);
+	}
+}
+
+class TimedTransform implements Transform, BufferTransform
+{
+	final Transform transform;
+	final LongAdder calls = new LongAdder();
+	final LongAdder nanos = new LongAdder();
+
+	/**
+	 * Counts the lines transform is applied to and the time it takes
+	 *
+	 * @param transform
+	 */
+	TimedTransform(Transform transform)
+	{
+		this.transform = transform;
+	}
+
+	public String transform(String str)
+	{
+		long start = System.nanoTime();
+		String transformed = transform.transform(str);
+
+		record(start);
+
+		return transformed;
+	}
+
+	public boolean transform(CharLine line)
+	{
+		if (!(transform instanceof BufferTransform))
+		{
+			return false;
+		}
+
+		long start = System.nanoTime();
+		boolean done = ((BufferTransform) transform).transform(line);
+
+		// a refused line is counted when it comes back as a String
+		if (done)
+		{
+			record(start);
+		}
+
+		return done;
+	}
+
+	private void record(long start)
+	{
+		nanos.add(System.nanoTime() - start);
+		calls.increment();
+	}
+
+	public String toString()
+	{
+		return String.valueOf(transform);
+	}
+}
+
+class SearchStats implements Query, ByteQuery
+{
+	Query query;
+	CountedQuery[] predicates = new CountedQuery[0];
+	TimedTransform[] transforms = new TimedTransform[0];
+	final LongAdder lines = new LongAdder();
+	final LongAdder bytesRead = new LongAdder();
+	final LongAdder matchNanos = new LongAdder();
+	long parseNanos;
+	long totalNanos;
+	long matched;
+	long bytesWritten;
+	long writeNanos;
+
+	/**
+	 * Returns a copy of plan that records its work here: every line
+	 * evaluated, its size in bytes, the time spent matching it, each
+	 * predicate's evaluations and rejections, and each transform's time.
+	 * The plan's queries are kept as they are so that the index and the
+	 * result cache see the same plan; a compiled query is only counted
+	 * as a whole. Nothing is recorded for plans that are not
+	 * instrumented.
+	 *
+	 * @param plan
+	 * @return instrumented
+	 */
+	SearchPlan instrument(SearchPlan plan)
+	{
+		this.query = plan.query;
+
+		if (plan.query instanceof AdaptiveQuery)
+		{
+			Query[] original = ((AdaptiveQuery) plan.query).predicates;
+
+			this.predicates = new CountedQuery[original.length];
+
+			for (int i = 0; i < original.length; i++)
+			{
+				predicates[i] = new CountedQuery(original[i]);
+			}
+
+			this.query = new AdaptiveQuery(predicates);
+		}
+
+		this.transforms = new TimedTransform[plan.transforms.length];
+
+		for (int i = 0; i < transforms.length; i++)
+		{
+			transforms[i] = new TimedTransform(plan.transforms[i]);
+		}
+
+		return new SearchPlan(plan.queries, this, transforms, plan.errors);
+	}
+
+	public boolean matches(String str)
+	{
+		long start = System.nanoTime();
+		boolean matches = query.matches(str);
+
+		record(start, utf8Length(str) + 1);
+
+		return matches;
+	}
+
+	public boolean matches(ByteBuffer buf, int start, int end)
+	{
+		long began = System.nanoTime();
+		boolean matches = ByteLines.matches(query, buf, start, end);
+
+		record(began, end - start + 1);
+
+		return matches;
+	}
+
+	private void record(long start, long bytes)
+	{
+		matchNanos.add(System.nanoTime() - start);
+		lines.increment();
+		bytesRead.add(bytes);
+	}
+
+	static long utf8Length(String str)
+	{
+		long length = str.length();
+
+		for (int i = 0; i < str.length(); i++)
+		{
+			char c = str.charAt(i);
+
+			if (c >= 0x80)
+			{
+				// surrogate pairs are 2 chars for 4 bytes
+				length += ((c >= 0x800) && !(Character.isSurrogate(c))) ? 2 : 1;
+			}
+		}
+
+		return length;
+	}
+
+	/**
+	 * Records the output side of a finished search
+	 *
+	 * @param matched
+	 * @param out
+	 */
+	void finish(long matched, OutputSink out)
+	{
+		this.matched = matched;
+		this.bytesWritten = out.bytesWritten;
+		this.writeNanos = out.writeNanos;
+	}
+
+	long transformNanos()
+	{
+		long nanos = 0;
+
+		for (TimedTransform transform : transforms)
+		{
+			nanos += transform.nanos.sum();
+		}
+
+		return nanos;
+	}
+
+	/**
+	 * Returns a readable summary. Match and transform times are summed
+	 * over all threads, so with --parallel they can exceed the total.
+	 *
+	 * @return summary
+	 */
+	String summary()
+	{
+		StringBuilder summary = new StringBuilder("Search statistics:");
+
+		summary.append(String.format("%n  lines scanned    %d", lines.sum()));
+		summary.append(String.format("%n  lines matched    %d", matched));
+		summary.append(String.format("%n  bytes read       %d", bytesRead.sum()));
+		summary.append(String.format("%n  bytes written    %d", bytesWritten));
+		summary.append(String.format("%n  parse            %.3f ms", parseNanos / 1e6));
+		summary.append(String.format("%n  match            %.3f ms", matchNanos.sum() / 1e6));
+		summary.append(String.format("%n  transform        %.3f ms", transformNanos() / 1e6));
+		summary.append(String.format("%n  write            %.3f ms", writeNanos / 1e6));
+		summary.append(String.format("%n  total            %.3f ms", totalNanos / 1e6));
+
+		for (CountedQuery predicate : predicates)
+		{
+			long evaluated = predicate.evaluated.sum();
+			long rejected = predicate.rejected.sum();
+
+			summary.append(String.format("%n  predicate %s  evaluated=%d rejected=%d (%.1f%%)", predicate,
+					evaluated, rejected, 100.0 * rejected / Math.max(1, evaluated)));
+		}
+
+		for (TimedTransform transform : transforms)
+		{
+			summary.append(String.format("%n  transform %s  lines=%d time=%.3f ms", transform,
+					transform.calls.sum(), transform.nanos.sum() / 1e6));
+		}
+
+		return summary.toString();
+	}
+
+	/**
+	 * Returns the same figures as summary() as one JSON object, with
+	 * times in nanoseconds
+	 *
+	 * @return json
+	 */
+	String toJson()
+	{
+		StringJoiner predicateJson = new StringJoiner(",", "[", "]");
+		StringJoiner transformJson = new StringJoiner(",", "[", "]");
+
+		for (CountedQuery predicate : predicates)
+		{
+			predicateJson.add(String.format("{\"predicate\":%s,\"evaluated\":%d,\"rejected\":%d}",
+					json(String.valueOf(predicate)), predicate.evaluated.sum(), predicate.rejected.sum()));
+		}
+
+		for (TimedTransform transform : transforms)
+		{
+			transformJson.add(String.format("{\"transform\":%s,\"lines\":%d,\"nanos\":%d}",
+					json(String.valueOf(transform)), transform.calls.sum(), transform.nanos.sum()));
+		}
+
+		return String.format("{\"linesScanned\":%d,\"linesMatched\":%d,\"bytesRead\":%d,\"bytesWritten\":%d,"
+				+ "\"nanos\":{\"parse\":%d,\"match\":%d,\"transform\":%d,\"write\":%d,\"total\":%d},"
+				+ "\"predicates\":%s,\"transforms\":%s}",
+				lines.sum(), matched, bytesRead.sum(), bytesWritten,
+				parseNanos, matchNanos.sum(), transformNanos(), writeNanos, totalNanos,
+				predicateJson, transformJson);
+	}
+
+	static String json(String str)
+	{
+		StringBuilder json = new StringBuilder("\"");
+
+		for (char c : str.toCharArray())
+		{
+			if ((c == '"') || (c == '\\'))
+			{
+				json.append('\\').append(c);
+			}
+			else if (c < 0x20)
+			{
+				json.append(String.format("\\u%04x", (int) c));
+			}
+			else
+			{
+				json.append(c);
+			}
+		}
+
+		return json.append('"').toString();
+	}
+}
+
+class SearchOptions
+{
+	final List<String> positional = new ArrayList<>();
+	final List<String> errors = new ArrayList<>();
+	final List<String> files = new ArrayList<>();
+	boolean mmap = false;
+	int threads = 0;
+	boolean ordered = true;
+	FlushPolicy flush = null;
+	boolean showPlan = false;
+	boolean index = false;
+	String serve = null;
+	String connect = null;
+	boolean cache = false;
+	Path cacheDirectory = null;
+	long cacheBytes = ResultCache.DEFAULT_MAX_BYTES;
+	boolean cacheStats = false;
+	boolean count = false;
+	long limit = Long.MAX_VALUE;
+	boolean compile = false;
+	boolean follow = false;
+	String stats = null;
+	Path statsFile = null;
+	int bufferSize = OutputSink.DEFAULT_BUFFER;
+
+	/**
+	 * Separates "--flag" and "--flag=value" options from the positional
+	 * file, query and transform arguments
+	 *
+	 * @param args
+	 * @return options
+	 */
+	static SearchOptions parse(String[] args)
+	{
+		SearchOptions options = new SearchOptions();
+
+		for (String arg : args)
+		{
+			if (!(arg.startsWith("--")))
+			{
+				options.positional.add(arg);
+				continue;
+			}
+
+			int equals = arg.indexOf('=');
+			String name = (equals < 0) ? arg.substring(2) : arg.substring(2, equals);
+			String value = (equals < 0) ? null : arg.substring(equals + 1);
+
+			options.set(name, value);
+		}
+
+		return options;
+	}
+
+	void set(String name, String value)
+	{
+		switch (name)
+		{
+			case "mmap":
+				this.mmap = true;
+				break;
+			case "parallel":
+				this.threads = (value == null) ? Runtime.getRuntime().availableProcessors() : parseCount(name, value);
+				break;
+			case "unordered":
+				this.ordered = false;
+				break;
+			case "flush":
+				try
+				{
+					this.flush = FlushPolicy.valueOf(String.valueOf(value).toUpperCase());
+				}
+				catch (IllegalArgumentException iae)
+				{
+					errors.add("Invalid value for --flush: " + value + " (expected full, line or end)");
+				}
+				break;
+			case "index":
+				this.index = true;
+				break;
+			case "serve":
+				this.serve = value;
+				break;
+			case "connect":
+				this.connect = value;
+				break;
+			case "cache":
+				this.cache = true;
+				this.cacheDirectory = (value == null) ? null : Paths.get(value);
+				break;
+			case "cache-size":
+				this.cacheBytes = parseCount(name, value);
+				break;
+			case "cache-stats":
+				this.cacheStats = true;
+				break;
+			case "count":
+				this.count = true;
+				break;
+			case "compile":
+				this.compile = true;
+				break;
+			case "follow":
+				this.follow = true;
+				break;
+			case "file":
+				if ((value == null) || value.isEmpty())
+				{
+					errors.add("Missing value for --file");
+				}
+				else
+				{
+					this.files.add(value);
+				}
+				break;
+			case "stats":
+				if ((value == null) || value.equals("text") || value.equals("json"))
+				{
+					this.stats = (value == null) ? "text" : value;
+				}
+				else
+				{
+					errors.add("Invalid value for --stats: " + value + " (expected text or json)");
+				}
+				break;
+			case "stats-file":
+				this.statsFile = Paths.get(String.valueOf(value));
+				break;
+			case "limit":
+				this.limit = ("0".equals(value)) ? 0 : parseCount(name, value);
+				break;
+			case "plan":
+				this.showPlan = true;
+				break;
+			case "buffer":
+				this.bufferSize = parseCount(name, value);
+				break;
+			default:
+				errors.add("Unknown option: --" + name);
+				break;
+		}
+	}
+
+	int parseCount(String name, String value)
+	{
+		try
+		{
+			int count = Integer.parseInt(value);
+
+			if (count > 0)
+			{
+				return count;
+			}
+		}
+		catch (NumberFormatException nfe)
+		{
+		}
+
+		errors.add("Invalid value for --" + name + ": " + value);
+		return 1;
+	}
+}
+
+class LengthRange implements Query, ByteQuery
+{
+	int min;
+	int max;
+
+	/**
+	 * Matches lines whose length is between min and max inclusive
+	 *
+	 * @param min
+	 * @param max
+	 */
+	LengthRange(int min, int max)
+	{
+		this.min = min;
+		this.max = max;
+	}
+
+	boolean isEmpty()
+	{
+		return (min > max);
+	}
+
+	public boolean matches(String str)
+	{
+		int length = str.length();
+
+		return ((length >= min) && (length <= max));
+	}
+
+	public boolean matches(ByteBuffer buf, int start, int end)
+	{
+		int length = end - start;
+
+		return ((length >= min) && (length <= max));
+	}
+
+	public String toString()
+	{
+		List<String> bounds = new ArrayList<>();
+
+		if (min > 0)
+		{
+			bounds.add("greater=" + (min - 1));
+		}
+
+		if (max < Integer.MAX_VALUE)
+		{
+			bounds.add("less=" + ((long) max + 1));
+		}
+
+		return bounds.isEmpty() ? "greater=-1" : String.join("&", bounds);
+	}
+}
+
+class StartsAndEndsWith implements Query, ByteQuery
+{
+	StartsWith prefix;
+	EndsWith suffix;
+
+	StartsAndEndsWith(StartsWith prefix, EndsWith suffix)
+	{
+		this.prefix = prefix;
+		this.suffix = suffix;
+	}
+
+	public boolean matches(String str)
+	{
+		return (prefix.matches(str) && suffix.matches(str));
+	}
+
+	public boolean matches(ByteBuffer buf, int start, int end)
+	{
+		return (prefix.matches(buf, start, end) && suffix.matches(buf, start, end));
+	}
+
+	public String toString()
+	{
+		return prefix + "&" + suffix;
+	}
+}
+
+class Matches implements Query, ByteQuery
+{
+	final String regex;
+	final Pattern pattern;
+	final ThreadLocal<Matcher> matchers;
+	final String literal;
+	final SubstringMatcher prefilter;
+
+	/**
+	 * Matches lines in which the regular expression regex finds a
+	 * match. The pattern is compiled once, and each thread reuses one
+	 * Matcher. Lines without the longest literal that every match must
+	 * contain are rejected before the regex engine runs.
+	 *
+	 * @param regex
+	 * @throws PatternSyntaxException if regex is not valid
+	 */
+	Matches(String regex)
+	{
+		this.regex = regex;
+		this.pattern = Pattern.compile(regex);
+		this.matchers = ThreadLocal.withInitial(() -> pattern.matcher(""));
+		this.literal = requiredLiteral(regex);
+		this.prefilter = literal.isEmpty() ? null : new SubstringMatcher(literal);
+	}
+
+	public boolean matches(String str)
+	{
+		if ((prefilter != null) && (prefilter.indexOf(str, 0) < 0))
+		{
+			return false;
+		}
+
+		return matchers.get().reset(str).find();
+	}
+
+	public boolean matches(ByteBuffer buf, int start, int end)
+	{
+		if ((prefilter != null) && (prefilter.indexOf(buf, start, end) < 0))
+		{
+			return false;
+		}
+
+		CharLine line = CharLine.get();
+
+		line.setAscii(buf, start, end);
+
+		return matchers.get().reset(line).find();
+	}
+
+	/**
+	 * Returns the longest run of literal characters that every match of
+	 * regex must contain, or "" if there is none. Only the top level of
+	 * the expression is considered: groups, classes, escapes other than
+	 * quoted punctuation, and characters made optional or repeated by a
+	 * quantifier end a run, and any top-level '|' or inline flag (which
+	 * may make matching case-insensitive) means there is no literal.
+	 *
+	 * @param regex
+	 * @return literal
+	 */
+	static String requiredLiteral(String regex)
+	{
+		String longest = "";
+		StringBuilder run = new StringBuilder();
+		int i = 0;
+
+		while (i < regex.length())
+		{
+			char c = regex.charAt(i);
+			// where the last atom starts in run, for a quantifier that follows it
+			int atom = run.length();
+
+			if (regex.startsWith("\\Q", i))
+			{
+				int end = regex.indexOf("\\E", i + 2);
+
+				end = (end < 0) ? regex.length() : end;
+				run.append(regex, i + 2, end);
+				atom = Math.max(atom, run.length() - 1);
+				i = Math.min(regex.length(), end + 2);
+			}
+			else if ((c == '\\') && (i + 1 < regex.length()) && !(Character.isLetterOrDigit(regex.charAt(i + 1))))
+			{
+				run.append(regex.charAt(i + 1));
+				i += 2;
+			}
+			else if (c == '\\')
+			{
+				longest = longer(longest, run);
+				run.setLength(0);
+				i = skipEscape(regex, i);
+			}
+			else if (c == '|')
+			{
+				return "";
+			}
+			else if ((c == '(') || (c == '['))
+			{
+				if ((c == '(') && regex.startsWith("(?", i) && (i + 2 < regex.length())
+						&& (":=!<>".indexOf(regex.charAt(i + 2)) < 0))
+				{
+					return "";
+				}
+
+				longest = longer(longest, run);
+				run.setLength(0);
+				i = skipGroup(regex, i);
+			}
+			else if (".^$".indexOf(c) >= 0)
+			{
+				longest = longer(longest, run);
+				run.setLength(0);
+				i++;
+			}
+			else
+			{
+				run.append(c);
+				i++;
+			}
+
+			if ((i < regex.length()) && ("?*+{".indexOf(regex.charAt(i)) >= 0))
+			{
+				// the last atom is optional or repeated, so the run cannot continue past it
+				boolean required = (regex.charAt(i) == '+')
+						|| ((regex.charAt(i) == '{') && (minimumRepeats(regex, i) > 0));
+
+				run.setLength(required ? run.length() : Math.min(atom, run.length()));
+				longest = longer(longest, run);
+				run.setLength(0);
+				i = skipQuantifier(regex, i);
+			}
+		}
+
+		return longer(longest, run);
+	}
+
+	private static String longer(String longest, StringBuilder run)
+	{
+		return (run.length() > longest.length()) ? run.toString() : longest;
+	}
+
+	/**
+	 * Returns the index after the escape sequence at i, such as \d,
+	 * \x41, \p{Alpha} or a back reference
+	 */
+	private static int skipEscape(String regex, int i)
+	{
+		char kind = regex.charAt(i + 1);
+
+		i += 2;
+
+		if ((i < regex.length()) && (regex.charAt(i) == '{') && ("xpPN".indexOf(kind) >= 0))
+		{
+			int close = regex.indexOf('}', i);
+
+			return (close < 0) ? regex.length() : close + 1;
+		}
+
+		switch (kind)
+		{
+			case 'x':
+				return Math.min(regex.length(), i + 2);
+			case 'u':
+				return Math.min(regex.length(), i + 4);
+			case 'c':
+			case 'p':
+			case 'P':
+				return Math.min(regex.length(), i + 1);
+			case 'k':
+				int close = regex.indexOf('>', i);
+
+				return (close < 0) ? regex.length() : close + 1;
+			default:
+				break;
+		}
+
+		while (Character.isDigit(kind) && (i < regex.length()) && Character.isDigit(regex.charAt(i)))
+		{
+			i++;
+		}
+
+		return i;
+	}
+
+	/**
+	 * Returns the index after the group or character class at i
+	 */
+	private static int skipGroup(String regex, int i)
+	{
+		int depth = 0;
+		int classDepth = 0;
+
+		for (; i < regex.length(); i++)
+		{
+			char c = regex.charAt(i);
+
+			if (regex.startsWith("\\Q", i))
+			{
+				int end = regex.indexOf("\\E", i + 2);
+
+				i = (end < 0) ? regex.length() : end + 1;
+			}
+			else if (c == '\\')
+			{
+				i++;
+			}
+			else if (c == '[')
+			{
+				classDepth++;
+
+				// a ']' right after '[' or '[^' is a member of the class
+				if ((i + 1 < regex.length()) && (regex.charAt(i + 1) == '^'))
+				{
+					i++;
+				}
+
+				if ((i + 1 < regex.length()) && (regex.charAt(i + 1) == ']'))
+				{
+					i++;
+				}
+			}
+			else if ((c == ']') && (classDepth > 0))
+			{
+				if ((--classDepth == 0) && (depth == 0))
+				{
+					return i + 1;
+				}
+			}
+			else if ((c == '(') && (classDepth == 0))
+			{
+				depth++;
+			}
+			else if ((c == ')') && (classDepth == 0) && (--depth == 0))
+			{
+				return i + 1;
+			}
+		}
+
+		return regex.length();
+	}
+
+	private static int minimumRepeats(String regex, int i)
+	{
+		int end = i + 1;
+
+		while ((end < regex.length()) && Character.isDigit(regex.charAt(end)))
+		{
+			end++;
+		}
+
+		return (end > i + 1) ? Integer.parseInt(regex.substring(i + 1, end)) : 0;
+	}
+
+	private static int skipQuantifier(String regex, int i)
+	{
+		if (regex.charAt(i) == '{')
+		{
+			int close = regex.indexOf('}', i);
+
+			i = (close < 0) ? regex.length() : close + 1;
+		}
+		else
+		{
+			i++;
+		}
+
+		// lazy and possessive forms
+		if ((i < regex.length()) && ((regex.charAt(i) == '?') || (regex.charAt(i) == '+')))
+		{
+			i++;
+		}
+
+		return i;
+	}
+
+	public String toString()
+	{
+		return "matches=" + QueryParser.quote(regex);
+	}
+}
+
+class QueryParser
+{
+	static final String BOUNDARIES = "&|);";
+
+	final String input;
+	int position = 0;
+
+	/**
+	 * A recursive-descent parser for queries and transform chains:
+	 *
+	 *   query      := and ('|' and)*
+	 *   and        := unary ('&' unary)*
+	 *   unary      := 'not(' query ')' | '(' query ')' | predicate
+	 *   predicate  := ('contains' | 'starts' | 'ends' | 'matches') '=' literal
+	 *               | ('length' | 'greater' | 'less') '=' integer
+	 *   transforms := step ('&' step)*
+	 *   step       := 'upper' | 'lower' | ('first' | 'last') '=' integer
+	 *               | 'replace=' literal ';' literal
+	 *
+	 * '&' binds tighter than '|', and spaces between tokens are ignored.
+	 * Literals are single-quoted; \' stands for a quote and \\ for a
+	 * backslash, and any other backslash is kept as it is. So that older
+	 * queries keep working, a quote that is not followed by an operator,
+	 * ')', ';' or the end is part of the literal.
+	 *
+	 * @param input
+	 */
+	QueryParser(String input)
+	{
+		this.input = input;
+	}
+
+	/**
+	 * Parses a whole query
+	 *
+	 * @param query
+	 * @return parsed
+	 * @throws IllegalArgumentException if query is not valid
+	 */
+	static Query parseQuery(String query)
+	{
+		QueryParser parser = new QueryParser(query);
+		Query parsed = parser.or();
+
+		parser.expectEnd();
+
+		return parsed;
+	}
+
+	/**
+	 * Parses a whole transform chain
+	 *
+	 * @param transform
+	 * @return parsed
+	 * @throws IllegalArgumentException if transform is not valid
+	 */
+	static Transform[] parseTransforms(String transform)
+	{
+		QueryParser parser = new QueryParser(transform);
+		List<Transform> steps = new ArrayList<>();
+
+		do
+		{
+			steps.add(parser.transform());
+		}
+		while (parser.accept('&'));
+
+		parser.expectEnd();
+
+		return steps.toArray(new Transform[0]);
+	}
+
+	/**
+	 * Returns str as a literal that parses back to str
+	 *
+	 * @param str
+	 * @return literal
+	 */
+	static String quote(String str)
+	{
+		return "'" + str.replace("\\", "\\\\").replace("'", "\\'") + "'";
+	}
+
+	Query or()
+	{
+		List<Query> terms = new ArrayList<>();
+
+		do
+		{
+			terms.add(and());
+		}
+		while (accept('|'));
+
+		return (terms.size() == 1) ? terms.get(0) : new Or(terms.toArray(new Query[0]));
+	}
+
+	Query and()
+	{
+		List<Query> terms = new ArrayList<>();
+
+		do
+		{
+			terms.add(unary());
+		}
+		while (accept('&'));
+
+		return (terms.size() == 1) ? terms.get(0) : new And(terms.toArray(new Query[0]));
+	}
+
+	Query unary()
+	{
+		if (accept('('))
+		{
+			Query grouped = or();
+
+			expect(')');
+			return grouped;
+		}
+
+		int start = position;
+		String name = name();
+
+		if (name.equals("not") && accept('('))
+		{
+			Query negated = or();
+
+			expect(')');
+			return new Not(negated);
+		}
+
+		expect('=');
+
+		switch (name)
+		{
+			case "contains":
+				return new Contains(literal());
+			case "starts":
+				return new StartsWith(literal());
+			case "ends":
+				return new EndsWith(literal());
+			case "length":
+				return new Length(integer());
+			case "greater":
+				return new GreaterThan(integer());
+			case "less":
+				return new LessThan(integer());
+			case "matches":
+				return regex();
+			default:
+				throw error("unknown predicate '" + name + "'", start);
+		}
+	}
+
+	Query regex()
+	{
+		int start = position;
+		String regex = literal();
+
+		try
+		{
+			return new Matches(regex);
+		}
+		catch (PatternSyntaxException pse)
+		{
+			throw error("invalid regular expression: " + pse.getDescription(), start);
+		}
+	}
+
+	Transform transform()
+	{
+		int start = position;
+		String name = name();
+
+		switch (name)
+		{
+			case "upper":
+				return new UpperCase();
+			case "lower":
+				return new LowerCase();
+			case "first":
+				expect('=');
+				return new FirstLetters(integer());
+			case "last":
+				expect('=');
+				return new LastLetters(integer());
+			case "replace":
+				expect('=');
+
+				String toReplace = literal();
+
+				expect(';');
+				return new Replace(toReplace, literal());
+			default:
+				throw error("unknown transform '" + name + "'", start);
+		}
+	}
+
+	String name()
+	{
+		skipSpaces();
+
+		int start = position;
+
+		while ((position < input.length()) && Character.isLetter(input.charAt(position)))
+		{
+			position++;
+		}
+
+		if (position == start)
+		{
+			throw error("expected a name", start);
+		}
+
+		return input.substring(start, position);
+	}
+
+	int integer()
+	{
+		skipSpaces();
+
+		int start = position;
+
+		if ((position < input.length()) && (input.charAt(position) == '-'))
+		{
+			position++;
+		}
+
+		while ((position < input.length()) && Character.isDigit(input.charAt(position)))
+		{
+			position++;
+		}
+
+		try
+		{
+			return Integer.parseInt(input.substring(start, position));
+		}
+		catch (NumberFormatException nfe)
+		{
+			throw error("expected an integer", start);
+		}
+	}
+
+	String literal()
+	{
+		skipSpaces();
+
+		int start = position;
+
+		if (!(accept('\'')))
+		{
+			throw error("expected a quoted literal", position);
+		}
+
+		StringBuilder literal = new StringBuilder();
+
+		while (position < input.length())
+		{
+			char c = input.charAt(position++);
+
+			if ((c == '\\') && (position < input.length()))
+			{
+				char escaped = input.charAt(position++);
+
+				if ((escaped != '\'') && (escaped != '\\'))
+				{
+					literal.append('\\');
+				}
+
+				literal.append(escaped);
+			}
+			else if ((c == '\'') && atBoundary())
+			{
+				return literal.toString();
+			}
+			else
+			{
+				literal.append(c);
+			}
+		}
+
+		throw error("unterminated literal", start);
+	}
+
+	private boolean atBoundary()
+	{
+		int next = position;
+
+		while ((next < input.length()) && (input.charAt(next) == ' '))
+		{
+			next++;
+		}
+
+		return (next == input.length()) || (BOUNDARIES.indexOf(input.charAt(next)) >= 0);
+	}
+
+	boolean accept(char c)
+	{
+		skipSpaces();
+
+		if ((position < input.length()) && (input.charAt(position) == c))
+		{
+			position++;
+			return true;
+		}
+
+		return false;
+	}
+
+	void expect(char c)
+	{
+		if (!(accept(c)))
+		{
+			throw error("expected '" + c + "'", position);
+		}
+	}
+
+	void expectEnd()
+	{
+		skipSpaces();
+
+		if (position < input.length())
+		{
+			throw error("unexpected '" + input.charAt(position) + "'", position);
+		}
+	}
+
+	private void skipSpaces()
+	{
+		while ((position < input.length()) && (input.charAt(position) == ' '))
+		{
+			position++;
+		}
+	}
+
+	private IllegalArgumentException error(String message, int at)
+	{
+		return new IllegalArgumentException(message + " at position " + (at + 1));
+	}
+}
+
+class QueryNormalizer
+{
+	/**
+	 * Rewrites a conjunction of queries into an equivalent one with fewer
+	 * predicates: double negations are folded, all length bounds become
+	 * one LengthRange, keywords implied by longer keywords are dropped,
+	 * and a StartsWith/EndsWith pair becomes one StartsAndEndsWith.
+	 * Nested And nodes are flattened into the conjunction, and each
+	 * branch of an Or is normalized on its own. If no line can match,
+	 * the result is a single empty LengthRange.
+	 *
+	 * @param qArray
+	 * @return normalized
+	 */
+	static Query[] normalize(Query[] qArray)
+	{
+		List<Query> flattened = new ArrayList<>();
+
+		for (Query query : qArray)
+		{
+			if (!(flatten(foldNot(query), flattened)))
+			{
+				return unsatisfiable();
+			}
+		}
+
+		qArray = flattened.toArray(new Query[0]);
+
+
+		long min = 0;
+		long max = Integer.MAX_VALUE;
+		List<Query> others = new ArrayList<>();
+		Set<String> seen = new HashSet<>();
+		List<String> contains = new ArrayList<>();
+		List<String> excluded = new ArrayList<>();
+		String prefix = null;
+		String suffix = null;
+
+		for (Query query : qArray)
+		{
+			query = foldNot(query);
+
+			boolean negated = (query instanceof Not);
+			Query inner = negated ? ((Not) query).query : query;
+
+			if ((inner instanceof Length) || (inner instanceof GreaterThan))
+			{
+				long bound = (inner instanceof Length) ? ((Length) inner).length : ((GreaterThan) inner).value;
+
+				if (negated)
+				{
+					max = Math.min(max, bound);
+				}
+				else
+				{
+					min = Math.max(min, bound + 1);
+				}
+			}
+			else if (inner instanceof LessThan)
+			{
+				long bound = ((LessThan) inner).value;
+
+				if (negated)
+				{
+					min = Math.max(min, bound);
+				}
+				else
+				{
+					max = Math.min(max, bound - 1);
+				}
+			}
+			else if ((inner instanceof Contains) && negated)
+			{
+				excluded.add(((Contains) inner).keyword);
+			}
+			else if (inner instanceof Contains)
+			{
+				contains.add(((Contains) inner).keyword);
+			}
+			else if ((inner instanceof StartsWith) && !(negated))
+			{
+				String keyword = ((StartsWith) inner).keyword;
+
+				if ((prefix == null) || keyword.startsWith(prefix))
+				{
+					prefix = keyword;
+				}
+				else if (!(prefix.startsWith(keyword)))
+				{
+					return unsatisfiable();
+				}
+			}
+			else if ((inner instanceof EndsWith) && !(negated))
+			{
+				String keyword = ((EndsWith) inner).keyword;
+
+				if ((suffix == null) || keyword.endsWith(suffix))
+				{
+					suffix = keyword;
+				}
+				else if (!(suffix.endsWith(keyword)))
+				{
+					return unsatisfiable();
+				}
+			}
+			else if (seen.add(query.toString()))
+			{
+				others.add(query);
+			}
+		}
+
+		if (min > max)
+		{
+			return unsatisfiable();
+		}
+
+		List<String> required = new ArrayList<>(contains);
+		List<Query> normalized = new ArrayList<>();
+
+		if (prefix != null)
+		{
+			required.add(prefix);
+		}
+
+		if (suffix != null)
+		{
+			required.add(suffix);
+		}
+
+		for (String keyword : excluded)
+		{
+			for (String present : required)
+			{
+				if (present.contains(keyword))
+				{
+					return unsatisfiable();
+				}
+			}
+		}
+
+		if ((min > 0) || (max < Integer.MAX_VALUE))
+		{
+			normalized.add(new LengthRange((int) min, (int) max));
+		}
+
+		if ((prefix != null) && (suffix != null))
+		{
+			normalized.add(new StartsAndEndsWith(new StartsWith(prefix), new EndsWith(suffix)));
+		}
+		else if (prefix != null)
+		{
+			normalized.add(new StartsWith(prefix));
+		}
+		else if (suffix != null)
+		{
+			normalized.add(new EndsWith(suffix));
+		}
+
+		for (int i = 0; i < contains.size(); i++)
+		{
+			if (!(isImplied(contains.get(i), i, contains, prefix, suffix)))
+			{
+				normalized.add(new Contains(contains.get(i)));
+			}
+		}
+
+		for (String keyword : new LinkedHashSet<>(excluded))
+		{
+			normalized.add(new Not(new Contains(keyword)));
+		}
+
+		normalized.addAll(others);
+
+		return normalized.toArray(new Query[0]);
+	}
+
+	/**
+	 * Returns true if the Contains keyword at index i is already implied
+	 * by the anchored keywords or by another, longer (or earlier equal)
+	 * Contains keyword
+	 */
+	private static boolean isImplied(String keyword, int i, List<String> contains, String prefix, String suffix)
+	{
+		if (((prefix != null) && prefix.contains(keyword)) || ((suffix != null) && suffix.contains(keyword)))
+		{
+			return true;
+		}
+
+		for (int j = 0; j < contains.size(); j++)
+		{
+			String other = contains.get(j);
+
+			if ((j != i) && other.contains(keyword) && ((other.length() > keyword.length()) || (j < i)))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Adds query to conjunction, splicing in the members of an And and
+	 * of an Or that is left with one branch. Returns false if query can
+	 * never match.
+	 *
+	 * @param query
+	 * @param conjunction
+	 * @return satisfiable
+	 */
+	private static boolean flatten(Query query, List<Query> conjunction)
+	{
+		if (query instanceof And)
+		{
+			for (Query member : ((And) query).queries)
+			{
+				if (!(flatten(foldNot(member), conjunction)))
+				{
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		if (!(query instanceof Or))
+		{
+			conjunction.add(query);
+			return true;
+		}
+
+		List<Query> branches = new ArrayList<>();
+		Set<String> seen = new HashSet<>();
+
+		for (Query branch : ((Or) query).queries)
+		{
+			Query[] normalized = normalize(new Query[]{ branch });
+
+			if (normalized.length == 0)
+			{
+				// this branch matches every line, and so does the Or
+				return true;
+			}
+
+			if (!(isUnsatisfiable(normalized)))
+			{
+				Query simplified = (normalized.length == 1) ? normalized[0] : new And(normalized);
+
+				if (seen.add(simplified.toString()))
+				{
+					branches.add(simplified);
+				}
+			}
+		}
+
+		if (branches.isEmpty())
+		{
+			return false;
+		}
+
+		if (branches.size() == 1)
+		{
+			return flatten(branches.get(0), conjunction);
+		}
+
+		conjunction.add(new Or(branches.toArray(new Query[0])));
+		return true;
+	}
+
+	static Query foldNot(Query query)
+	{
+		while ((query instanceof Not) && (((Not) query).query instanceof Not))
+		{
+			query = ((Not) ((Not) query).query).query;
+		}
+
+		return query;
+	}
+
+	static Query[] unsatisfiable()
+	{
+		return new Query[]{ new LengthRange(1, 0) };
+	}
+
+	static boolean isUnsatisfiable(Query[] qArray)
+	{
+		for (Query query : qArray)
+		{
+			if ((query instanceof LengthRange) && ((LengthRange) query).isEmpty())
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+}
+
+class SearchPlan
+{
+	final Query[] queries;
+	final Query query;
+	final boolean empty;
+	final Transform[] transforms;
+	final String[] errors;
+
+	SearchPlan(Query[] queries, Transform[] transforms, String[] errors)
+	{
+		this(queries, new AdaptiveQuery(queries), transforms, errors);
+	}
+
+	SearchPlan(Query[] queries, Query query, Transform[] transforms, String[] errors)
+	{
+		this.queries = queries;
+		this.query = query;
+		this.empty = QueryNormalizer.isUnsatisfiable(queries);
+		this.transforms = transforms;
+		this.errors = errors;
+	}
+
+	/**
+	 * Parses the query and transform arguments once, so that the line
+	 * loop only executes the result. Either argument may be null.
+	 *
+	 * @param query
+	 * @param transform
+	 * @return plan
+	 */
+	static SearchPlan compile(String query, String transform)
+	{
+		List<String> errors = new ArrayList<>();
+		Query[] queries = new Query[0];
+		Transform[] transforms = new Transform[0];
+
+		if (query != null)
+		{
+			try
+			{
+				Query parsed = QueryParser.parseQuery(query);
+
+				queries = (parsed instanceof And) ? ((And) parsed).queries : new Query[]{ parsed };
+			}
+			catch (IllegalArgumentException iae)
+			{
+				errors.add("Invalid query: " + query + " (" + iae.getMessage() + ")");
+			}
+		}
+
+		if (transform != null)
+		{
+			try
+			{
+				transforms = QueryParser.parseTransforms(transform);
+			}
+			catch (IllegalArgumentException iae)
+			{
+				errors.add("Invalid transform: " + transform + " (" + iae.getMessage() + ")");
+			}
+		}
+
+		if (errors.isEmpty())
+		{
+			queries = MultiKeywordQuery.group(QueryNormalizer.normalize(queries));
+			transforms = FusedTransform.fuse(transforms);
+		}
+
+		return new SearchPlan(queries, transforms, errors.toArray(new String[0]));
+	}
+
+	boolean matches(String line)
+	{
+		return query.matches(line);
+	}
+
+	String describe()
+	{
+		StringJoiner steps = new StringJoiner("&");
+
+		for (Transform transform : transforms)
+		{
+			steps.add(String.valueOf(transform));
+		}
+
+		Query described = (query instanceof SearchStats) ? ((SearchStats) query).query : query;
+		String queryPlan = (described instanceof AdaptiveQuery) ? ((AdaptiveQuery) described).describe()
+				: "Query plan (compiled): " + described;
+
+		return queryPlan + String.format("%nTransforms: ") + steps;
+	}
+
+	/**
+	 * Applies the transforms to line in this thread's CharLine and writes
+	 * the result to out, creating Strings only for transforms that cannot
+	 * work in place on this line
+	 *
+	 * @param line
+	 * @param out
+	 */
+	void write(String line, OutputSink out)
+	{
+		if (transforms.length == 0)
+		{
+			out.write(line);
+			return;
+		}
+
+		CharLine chars = CharLine.get();
+
+		chars.set(line);
+		transform(chars);
+		out.write(chars.chars, chars.length);
+	}
+
+	/**
+	 * Like write(String, OutputSink), for a matching line of a mapped file
+	 *
+	 * @param buf
+	 * @param start
+	 * @param end
+	 * @param ascii
+	 * @param out
+	 */
+	void write(ByteBuffer buf, int start, int end, boolean ascii, OutputSink out)
+	{
+		if (!(ascii))
+		{
+			write(ByteLines.decode(buf, start, end, false), out);
+		}
+		else if (transforms.length == 0)
+		{
+			out.write(buf, start, end);
+		}
+		else
+		{
+			CharLine chars = CharLine.get();
+
+			chars.setAscii(buf, start, end);
+			transform(chars);
+			out.write(chars.chars, chars.length);
+		}
+	}
+
+	private void transform(CharLine line)
+	{
+		for (Transform transform : transforms)
+		{
+			if (!((transform instanceof BufferTransform) && ((BufferTransform) transform).transform(line)))
+			{
+				line.set(transform.transform(line.toString()));
+			}
+		}
+	}
+
+	String apply(String line)
+	{
+		return StringSearch.applyTransformations(this.transforms, line);
+	}
+}
+
+class StringSearch
+{
+	/**
+	 * Parses query and accordingly creates Query object for return
+	 *
+	 * @param query
+	 * @return parsedQuery
+	 */
+	public static Query parseQuery(String query)
+	{
+		Query parsedQuery = null;
+
+		try
+		{
+			parsedQuery = QueryParser.parseQuery(query);
+		}
+		catch (IllegalArgumentException iae)
+		{
+		}
+
+		return parsedQuery;
+	}
+
+	/**
+	 * Returns false if non-matching element is found, otherwise true
+	 *
+	 * @param qArray
+	 * @param str
+	 * @return matchStatus
+	 */
+	public static boolean matchesAll(Query[] qArray, String str)
+	{
+		boolean matchStatus = false;
+
+		for (Query query : qArray)
+		{
+			if (!(query.matches(str)))
+			{
+				return matchStatus;
+			}
+		}
+
+		matchStatus = true;
+
+		return matchStatus;
+	}
+
+	/**
+	 * Parses transform, returns object accordingly
+	 *
+	 * @param transform
+	 * @return parsedTransform
+	 */
+	public static Transform parseTransform(String transform)
+	{
+		Transform parsedTransform = null;
+
+		try
+		{
+			Transform[] parsed = QueryParser.parseTransforms(transform);
+
+			parsedTransform = (parsed.length == 1) ? parsed[0] : null;
+		}
+		catch (IllegalArgumentException iae)
 		{
-			parsedTransform = new LowerCase();
 		}
 
 		return parsedTransform;
@@ -345,118 +7348,413 @@ class StringSearch
 
 	public static void main(String[] args)
 	{
-		if (args.length == 1)
+		SearchOptions options = SearchOptions.parse(args);
+		List<String> positional = options.positional;
+
+		if (options.serve != null)
+		{
+			serve(options);
+			return;
+		}
+
+		if ((positional.size() < 1) || (positional.size() > 3))
+		{
+			System.err.println("Usage: StringSearch [--mmap] [--parallel[=N] [--unordered]]"
+					+ " [--flush=full|line|end] [--buffer=BYTES] [--plan] [--index]"
+					+ " [--cache[=DIR]] [--cache-size=BYTES] [--cache-stats] [--count] [--limit=N] [--compile] [--follow]"
+					+ " [--stats[=text|json]] [--stats-file=PATH] [--file=TARGET]..."
+					+ " [--connect=PORT|SOCKET] <file> [query] [transform]");
+			System.err.println("       <file> and each --file TARGET may be a file, a directory or a glob");
+			System.err.println("       StringSearch --serve=PORT|SOCKET file...");
+			return;
+		}
+
+		if (options.connect != null)
 		{
-			String filepath = "./" + args[0];
+			List<String> errors = new ArrayList<>(options.errors);
+
+			errors.addAll(SearchServer.unsupported(options));
+
+			if (!(errors.isEmpty()))
+			{
+				for (String error : errors)
+				{
+					System.err.println(error);
+				}
+
+				return;
+			}
+
+			try
+			{
+				SearchServer.request(options.connect, options);
+			}
+			catch (IOException ioe)
+			{
+				System.err.println("Error contacting server " + options.connect + ": " + ioe);
+			}
 
-			String[] lines = getLines(filepath);
+			return;
+		}
+
+		String filepath = "./" + positional.get(0);
+		String query = (positional.size() > 1) ? positional.get(1) : null;
+		String transform = (positional.size() > 2) ? positional.get(2) : null;
+		SearchStats stats = ((options.stats != null) || (options.statsFile != null)) ? new SearchStats() : null;
+		long started = System.nanoTime();
+		SearchPlan plan = SearchPlan.compile(query, transform);
+		List<String> errors = new ArrayList<>(options.errors);
 
-			for (String line : lines)
+		errors.addAll(Arrays.asList(plan.errors));
+
+		if (!(errors.isEmpty()))
+		{
+			for (String error : errors)
 			{
-				System.out.println(line);
+				System.err.println(error);
 			}
+
+			return;
+		}
+
+		if (options.compile && !(plan.empty))
+		{
+			plan = QueryCompiler.compile(plan);
 		}
-		else if (args.length == 2)
+
+		if (stats != null)
 		{
-			String filepath = "./" + args[0];
-			String query = args[1];
-			String[] queries = query.split("&");
-			String[] lines = getLines(filepath);
-			Query qObj;
+			stats.parseNanos = System.nanoTime() - started;
+			plan = stats.instrument(plan);
+		}
 
-			for (String line : lines)
+		List<String> targets = MultiFileSearch.targets(positional.get(0), options);
+		List<Path> files = null;
+
+		if (MultiFileSearch.isMultiple(targets))
+		{
+			try
 			{
-				if (queries.length == 1)
-				{
-					qObj = parseQuery(query);
+				files = MultiFileSearch.expand(targets);
+			}
+			catch (IOException ioe)
+			{
+				System.err.println("Error reading file " + positional.get(0) + ": " + ioe);
+				return;
+			}
+		}
 
-					if (qObj.matches(line))
-					{
-						System.out.println(line);
-					}
-				}
-				else if (queries.length > 1)
-				{
-					Query[] newQArray = new Query[queries.length];
+		if (options.follow)
+		{
+			follow(filepath, files, plan, options);
+			return;
+		}
 
-					for (int i = 0; i < queries.length; i++)
-					{
-						newQArray[i] = parseQuery(queries[i]);
-					}
+		ResultCache cache = (options.cache && (files == null))
+				? new ResultCache(options.cacheDirectory, options.cacheBytes) : null;
 
-					if (matchesAll(newQArray, line))
-					{
-						System.out.println(line);
-					}
-				}
+		if (cache != null)
+		{
+			cache.load();
+		}
+
+		try (OutputSink out = OutputSink.stdout(options.flush, options.bufferSize))
+		{
+			long count = (files != null) ? MultiFileSearch.search(files, plan, options, out)
+					: search(filepath, plan, options, cache, out);
+
+			if (options.count && (files == null))
+			{
+				out.write(String.valueOf(count));
+			}
+
+			if (stats != null)
+			{
+				out.flush();
+				stats.totalNanos = System.nanoTime() - started;
+				stats.finish(count, out);
 			}
 		}
-		else if (args.length == 3)
+
+		if (cache != null)
 		{
-			String filepath = "./" + args[0];
-			String query = args[1];
-			String transform = args[2];
-			String[] queries = query.split("&");
-			String[] transformations = transform.split("&");
-			String[] lines = getLines(filepath);
-			Query qObj;
+			cache.save();
 
-			for (String line : lines)
+			if (options.cacheStats)
 			{
-				if ((queries.length == 1) && (transformations.length== 1))
-				{
-					Transform tObj = parseTransform(transform);
-					qObj = parseQuery(query);
+				System.err.println(cache.stats());
+			}
+		}
+
+		if (options.showPlan)
+		{
+			System.err.println(plan.describe());
+		}
 
-					if (qObj.matches(line))
+		if (stats != null)
+		{
+			report(stats, options);
+		}
+	}
+
+	/**
+	 * Prints stats to stderr, or writes them to options.statsFile, in the
+	 * format chosen by --stats
+	 *
+	 * @param stats
+	 * @param options
+	 */
+	static void report(SearchStats stats, SearchOptions options)
+	{
+		String report = "json".equals(options.stats) ? stats.toJson() : stats.summary();
+
+		if (options.statsFile == null)
+		{
+			System.err.println(report);
+			return;
+		}
+
+		try
+		{
+			Files.write(options.statsFile, (report + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+		}
+		catch (IOException ioe)
+		{
+			System.err.println("Error writing statistics to " + options.statsFile + ": " + ioe);
+		}
+	}
+
+	/**
+	 * Runs a --follow search of one plain file until the limit is reached
+	 * or the process is stopped
+	 *
+	 * @param filepath
+	 * @param files
+	 * @param plan
+	 * @param options
+	 */
+	static void follow(String filepath, List<Path> files, SearchPlan plan, SearchOptions options)
+	{
+		Path path = Paths.get(filepath);
+
+		if ((files != null) || options.count || CompressedInput.isGzip(path))
+		{
+			System.err.println("--follow needs one uncompressed file and cannot be combined with --count");
+			return;
+		}
+
+		if (plan.empty || (options.limit == 0))
+		{
+			return;
+		}
+
+		try (OutputSink out = OutputSink.stdout(options.flush, options.bufferSize))
+		{
+			new FollowSearch(path, plan, options.limit, out).run();
+		}
+		catch (IOException ioe)
+		{
+			System.err.println("Error reading file " + filepath + ": " + ioe);
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Loads the positional files and their indexes, then serves queries
+	 * against them, and no other files, until the process is stopped
+	 *
+	 * @param options
+	 */
+	static void serve(SearchOptions options)
+	{
+		if (options.positional.isEmpty())
+		{
+			System.err.println("Usage: StringSearch --serve=PORT|SOCKET file...");
+			return;
+		}
+
+		SearchServer server = new SearchServer();
+
+		try
+		{
+			for (String name : options.positional)
+			{
+				server.load(name);
+			}
+
+			server.serve(options.serve);
+		}
+		catch (IOException ioe)
+		{
+			System.err.println("Server failed: " + ioe);
+		}
+	}
+
+	/**
+	 * Returns a handler that counts each matching byte line in matched
+	 * and, unless options.count is set, writes it to out, copying
+	 * untransformed ASCII lines without decoding them. It asks to stop
+	 * at options.limit matches or once out is closed.
+	 *
+	 * @param plan
+	 * @param options
+	 * @param matched
+	 * @param out
+	 * @return printer
+	 */
+	static ByteLineHandler printer(SearchPlan plan, SearchOptions options, long[] matched, OutputSink out)
+	{
+		return (buf, start, end, ascii) ->
+		{
+			if (!(options.count))
+			{
+				plan.write(buf, start, end, ascii, out);
+			}
+
+			return (++matched[0] < options.limit) && !(out.closed);
+		};
+	}
+
+	/**
+	 * Runs plan over the file at filepath with the engine chosen by
+	 * options, writing results to out, and returns the number of
+	 * matching lines. With options.count nothing is transformed or
+	 * written, and with options.limit reading stops at that many
+	 * matches. If cache is not null, results are looked up there first.
+	 * Gzip files are always decompressed through the streaming engine.
+	 *
+	 * @param filepath
+	 * @param plan
+	 * @param options
+	 * @param cache
+	 * @param out
+	 * @return matched
+	 */
+	static long search(String filepath, SearchPlan plan, SearchOptions options, ResultCache cache, OutputSink out)
+	{
+		if (plan.empty || (options.limit == 0))
+		{
+			return 0;
+		}
+
+		long limit = options.limit;
+		long[] matched = { 0 };
+
+		boolean compressed = CompressedInput.isGzip(Paths.get(filepath));
+
+		if ((options.mmap || (options.threads > 0) || options.index || (cache != null)) && !(compressed))
+		{
+			ByteLineHandler printer = printer(plan, options, matched, out);
+			Path path = Paths.get(filepath);
+
+			try (MappedFile file = new MappedFile(path))
+			{
+				SearchIndex index = options.index ? SearchIndex.open(file, path) : null;
+				long indexed = ((index != null) && options.count) ? IndexedSearch.count(index, plan) : -1;
+
+				if (indexed >= 0)
+				{
+					matched[0] = Math.min(indexed, limit);
+				}
+				else if (cache != null)
+				{
+					cache.search(file, path, plan, handler ->
 					{
-						String lineOut = tObj.transform(line);
-						System.out.println(lineOut);
-					}
+						if (index != null)
+						{
+							IndexedSearch.search(file, index, plan, handler);
+						}
+						else
+						{
+							MappedSearch.search(file, plan, handler);
+						}
+					}, printer);
 				}
-				else if ((queries.length) == 1 && (transformations.length > 1))
+				else if (index != null)
 				{
-					Transform[] newTArray = new Transform[transformations.length];
-
-					for (int i = 0; i < transformations.length; i++)
+					IndexedSearch.search(file, index, plan, printer);
+				}
+				else if ((options.threads > 0) && options.count && (limit == Long.MAX_VALUE))
+				{
+					matched[0] = ParallelSearch.count(file, plan, options.threads);
+				}
+				else if ((options.threads > 0) && !(options.count))
+				{
+					ParallelSearch.search(file, plan, options.threads, options.ordered, line ->
 					{
-						Transform tObj = parseTransform(transformations[i]);
-					}
+						if (matched[0] >= limit)
+						{
+							return false;
+						}
 
-					qObj = parseQuery(query);
-
-					if (qObj.matches(line))
-					{
-						String lineOut = applyTransformations(newTArray, line);
-						System.out.println(lineOut);
-					}
+						out.write(line);
+						return (++matched[0] < limit) && !(out.closed);
+					});
 				}
-				else if ((queries.length > 1) && (transformations.length > 1))
+				else
 				{
-					Query[] newQArray = new Query[queries.length];
-					Transform[] newTArray = new Transform[transformations.length];
+					MappedSearch.search(file, plan, printer);
+				}
+			}
+			catch (IOException ioe)
+			{
+				System.err.println("Error reading file " + filepath
+						+ ": " + ioe);
+			}
 
-					for (int i = 0; i < queries.length; i++)
-					{
-						qObj = parseQuery(queries[i]);
-						newQArray[i] = qObj;
-					}
+			return matched[0];
+		}
 
-					for (int i = 0; i < transformations.length; i++)
-					{
-						Transform tObj = parseTransform(transformations[i]);
-						newTArray[i] = tObj;
-					}
+		forEachLine(filepath, options.threads, line ->
+		{
+			if (!(plan.matches(line)))
+			{
+				return true;
+			}
 
-					if (matchesAll(newQArray, line))
-					{
-						String lineOut = applyTransformations(newTArray, line);
+			if (!(options.count))
+			{
+				plan.write(line, out);
+			}
 
-						System.out.println(lineOut);
-					}
+			return (++matched[0] < limit) && !(out.closed);
+		});
+
+		return matched[0];
+	}
+
+	/**
+	 * Streams the lines of a file to handler as they are read, so memory
+	 * use does not grow with the file. Stops early if handler returns false.
+	 * Gzip input is decompressed with up to threads threads.
+	 *
+	 * @param path
+	 * @param threads
+	 * @param handler
+	 */
+	static void forEachLine(String path, int threads, LineHandler handler)
+	{
+		try (BufferedReader reader = CompressedInput.newBufferedReader(Paths.get(path), threads))
+		{
+			String line;
+
+			while ((line = reader.readLine()) != null)
+			{
+				if (!(handler.handle(line)))
+				{
+					return;
 				}
 			}
 		}
+		catch (IOException ioe)
+		{
+			System.err.println("Error reading file " + path
+					+ ": " + ioe);
+			handler.handle("Error reading file " + path + ": " + ioe);
+		}
 	}
 
 	static String[] getLines(String path)
@@ -0,0 +1,336 @@
+/**
+ * Benchmarks for the Query and Transform classes, the matchesAll and
+ * applyTransformations helpers, and full StringSearch runs over words
+ * and a synthetic file. Allocation is measured on the calling thread
+ * only, so parallel runs under-report it.
+ *
+ * Run with ./bench [--filter=NAME] [--time=MS] [--synthetic-lines=N]
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Function;
+
+
+interface Operation
+{
+	/**
+	 * Runs one operation on the i-th input, returning its result so the
+	 * JIT cannot discard the work
+	 *
+	 * @param i
+	 * @return result
+	 */
+	Object run(int i);
+}
+
+class StringSearchBenchmark
+{
+	static final int BATCH = 1000;
+	static final com.sun.management.ThreadMXBean THREADS =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	static volatile int sink;
+
+	static String filter = "";
+	static long iterationMillis = 200;
+	static int warmupIterations = 5;
+	static int measureIterations = 10;
+
+	public static void main(String[] args) throws IOException
+	{
+		int syntheticLines = 2_000_000;
+
+		for (String arg : args)
+		{
+			if (arg.startsWith("--filter="))
+			{
+				filter = arg.substring(9);
+			}
+			else if (arg.startsWith("--time="))
+			{
+				iterationMillis = Long.parseLong(arg.substring(7));
+			}
+			else if (arg.startsWith("--synthetic-lines="))
+			{
+				syntheticLines = Integer.parseInt(arg.substring(18));
+			}
+			else
+			{
+				System.err.println("Usage: StringSearchBenchmark [--filter=NAME] [--time=MS] [--synthetic-lines=N]");
+				return;
+			}
+		}
+
+		String[] lines = FileHelper.getLines("./words");
+		Path synthetic = synthetic(lines, syntheticLines);
+		Path wordsIndex = Paths.get("./words" + SearchIndex.SUFFIX);
+		boolean hadWordsIndex = Files.exists(wordsIndex);
+
+		System.out.printf("%-40s %14s %10s %10s %10s %12s%n",
+				"benchmark", "ops/s", "p50 ns", "p90 ns", "p99 ns", "alloc B/op");
+
+		try
+		{
+			queries(lines);
+			transforms(lines);
+			pipelines(lines);
+			searches(synthetic);
+		}
+		finally
+		{
+			Files.deleteIfExists(synthetic);
+			Files.deleteIfExists(Paths.get(synthetic + SearchIndex.SUFFIX));
+
+			// keep an index the user built before the run
+			if (!(hadWordsIndex))
+			{
+				Files.deleteIfExists(wordsIndex);
+			}
+		}
+	}
+
+	static void queries(String[] lines)
+	{
+		measure("query.Contains", lines, new Contains("tion")::matches);
+		measure("query.Contains.short", lines, new Contains("q")::matches);
+		measure("query.Length", lines, new Length(8)::matches);
+		measure("query.GreaterThan", lines, new GreaterThan(8)::matches);
+		measure("query.LessThan", lines, new LessThan(8)::matches);
+		measure("query.StartsWith", lines, new StartsWith("un")::matches);
+		measure("query.EndsWith", lines, new EndsWith("ness")::matches);
+		measure("query.Not", lines, new Not(new Contains("e"))::matches);
+		measure("query.Matches", lines, new Matches("un.*ness")::matches);
+		measure("query.Matches.unfiltered", lines, new Matches("[aeiou]{4}")::matches);
+	}
+
+	static void transforms(String[] lines)
+	{
+		measure("transform.UpperCase", lines, new UpperCase()::transform);
+		measure("transform.LowerCase", lines, new LowerCase()::transform);
+		measure("transform.FirstLetters", lines, new FirstLetters(3)::transform);
+		measure("transform.LastLetters", lines, new LastLetters(3)::transform);
+		measure("transform.Replace", lines, new Replace("ati", "_")::transform);
+	}
+
+	static void pipelines(String[] lines)
+	{
+		Query[] queries = { new Contains("a"), new GreaterThan(5), new Not(new EndsWith("s")) };
+		Transform[] transforms = { new UpperCase(), new FirstLetters(5), new LastLetters(3) };
+		SearchPlan plan = SearchPlan.compile("contains='a'&greater=5&not(ends='s')", "upper&first=5&last=3");
+
+		measure("StringSearch.matchesAll", lines, line -> StringSearch.matchesAll(queries, line));
+		measure("StringSearch.applyTransformations", lines, line -> StringSearch.applyTransformations(transforms, line));
+		measure("SearchPlan.matches", lines, plan::matches);
+		measure("SearchPlan.apply", lines, plan::apply);
+	}
+
+	static void searches(Path synthetic)
+	{
+		String[][] cases = {
+			{ "contains='ab'&less=6", "upper&first=3" },
+			{ "less=20", null },
+			{ "starts='un'&ends='ness'", null },
+		};
+		String[][] engines = {
+			{ "stream" },
+			{ "mmap", "--mmap" },
+			{ "parallel", "--parallel" },
+			{ "index", "--index" },
+		};
+
+		for (String file : new String[]{ "words", synthetic.toString() })
+		{
+			String label = file.equals("words") ? "words" : "synthetic";
+
+			for (String[] engine : engines)
+			{
+				for (int c = 0; c < cases.length; c++)
+				{
+					SearchOptions options = SearchOptions.parse(Arrays.copyOfRange(engine, 1, engine.length));
+					SearchPlan plan = SearchPlan.compile(cases[c][0], cases[c][1]);
+					String path = file.equals("words") ? "./words" : file;
+
+					measureRun("search." + label + "." + engine[0] + "." + c, () ->
+					{
+						try (OutputSink out = new OutputSink(Channels.newChannel(OutputStream.nullOutputStream()),
+								FlushPolicy.FULL, OutputSink.DEFAULT_BUFFER))
+						{
+							StringSearch.search(path, plan, options, null, out);
+						}
+					});
+				}
+			}
+		}
+	}
+
+	/**
+	 * Measures op over inputs in batches of BATCH calls, printing
+	 * throughput, per-call latency percentiles of the batches, and bytes
+	 * allocated per call
+	 *
+	 * @param name
+	 * @param inputs
+	 * @param op
+	 */
+	static void measure(String name, String[] inputs, Function<String, Object> op)
+	{
+		if (!(name.contains(filter)))
+		{
+			return;
+		}
+
+		Operation operation = i -> op.apply(inputs[Math.floorMod(i, inputs.length)]);
+
+		int cursor = 0;
+
+		for (int w = 0; w < warmupIterations; w++)
+		{
+			cursor = runFor(operation, cursor, null);
+		}
+
+		List<Long> batchNanos = new ArrayList<>();
+		long threadId = Thread.currentThread().getId();
+		long allocated = THREADS.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		long ops = 0;
+
+		for (int m = 0; m < measureIterations; m++)
+		{
+			int before = cursor;
+
+			cursor = runFor(operation, cursor, batchNanos);
+			ops += cursor - before;
+		}
+
+		long elapsed = System.nanoTime() - start;
+
+		allocated = THREADS.getThreadAllocatedBytes(threadId) - allocated;
+		report(name, ops, elapsed, batchNanos, BATCH, allocated);
+	}
+
+	private static int runFor(Operation operation, int cursor, List<Long> batchNanos)
+	{
+		long deadline = System.nanoTime() + (iterationMillis * 1_000_000);
+
+		while (System.nanoTime() < deadline)
+		{
+			long batchStart = System.nanoTime();
+			int hash = 0;
+
+			for (int i = 0; i < BATCH; i++)
+			{
+				hash += Objects.hashCode(operation.run(cursor++));
+			}
+
+			sink += hash;
+
+			if (batchNanos != null)
+			{
+				batchNanos.add(System.nanoTime() - batchStart);
+			}
+		}
+
+		return cursor;
+	}
+
+	/**
+	 * Measures a whole search run, timing every run separately
+	 *
+	 * @param name
+	 * @param run
+	 */
+	static void measureRun(String name, Runnable run)
+	{
+		if (!(name.contains(filter)))
+		{
+			return;
+		}
+
+		for (int w = 0; w < 2; w++)
+		{
+			run.run();
+		}
+
+		List<Long> runNanos = new ArrayList<>();
+		long threadId = Thread.currentThread().getId();
+		long allocated = THREADS.getThreadAllocatedBytes(threadId);
+		long deadline = System.nanoTime() + (iterationMillis * measureIterations * 1_000_000);
+		long start = System.nanoTime();
+
+		while ((runNanos.size() < 3) || (System.nanoTime() < deadline))
+		{
+			long runStart = System.nanoTime();
+
+			run.run();
+			runNanos.add(System.nanoTime() - runStart);
+		}
+
+		long elapsed = System.nanoTime() - start;
+
+		allocated = THREADS.getThreadAllocatedBytes(threadId) - allocated;
+		report(name, runNanos.size(), elapsed, runNanos, 1, allocated);
+	}
+
+	private static void report(String name, long ops, long elapsed, List<Long> samples, int perSample, long allocated)
+	{
+		Collections.sort(samples);
+
+		System.out.printf("%-40s %14.1f %10d %10d %10d %12.1f%n", name,
+				ops * 1e9 / elapsed,
+				percentile(samples, 0.50) / perSample,
+				percentile(samples, 0.90) / perSample,
+				percentile(samples, 0.99) / perSample,
+				allocated / (double) ops);
+	}
+
+	static long percentile(List<Long> sorted, double p)
+	{
+		if (sorted.isEmpty())
+		{
+			return 0;
+		}
+
+		return sorted.get((int) Math.min(sorted.size() - 1, Math.floor(p * sorted.size())));
+	}
+
+	/**
+	 * Writes a temporary file of lineCount lines, each made of one to
+	 * four random dictionary words
+	 *
+	 * @param words
+	 * @param lineCount
+	 * @return path
+	 */
+	static Path synthetic(String[] words, int lineCount) throws IOException
+	{
+		Path path = Files.createTempFile("stringsearch-bench", ".txt");
+		Random random = new Random(42);
+
+		try (java.io.BufferedWriter out = Files.newBufferedWriter(path))
+		{
+			for (int i = 0; i < lineCount; i++)
+			{
+				int count = 1 + random.nextInt(4);
+
+				for (int w = 0; w < count; w++)
+				{
+					if (w > 0)
+					{
+						out.write(' ');
+					}
+
+					out.write(words[random.nextInt(words.length)]);
+				}
+
+				out.newLine();
+			}
+		}
+
+		return path;
+	}
+}
@@ -0,0 +1,194 @@
+/**
+ * Regression checks for concurrent output limits and result cache keys.
+ * Each check prints its name and "ok" or "FAILED" with the reason, and
+ * the run exits with status 1 if any check failed.
+ *
+ * Run with ./check [--filter=NAME]
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.*;
+
+
+class StringSearchChecks
+{
+	static final int COPIES = 8;
+	static final int RUNS = 5;
+
+	static String filter = "";
+	static int failures = 0;
+
+	public static void main(String[] args) throws IOException
+	{
+		for (String arg : args)
+		{
+			if (arg.startsWith("--filter="))
+			{
+				filter = arg.substring(9);
+			}
+			else
+			{
+				System.err.println("Usage: StringSearchChecks [--filter=NAME]");
+				return;
+			}
+		}
+
+		parallelUnorderedLimit();
+		cacheKeyGrouping();
+
+		if (failures > 0)
+		{
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * --limit=N with --parallel --unordered must print exactly N lines
+	 * even though chunks finish concurrently. Eight threads over several
+	 * copies of words are used so that chunks overlap even on one CPU.
+	 */
+	static void parallelUnorderedLimit() throws IOException
+	{
+		String name = "parallel.unordered.limit";
+
+		if (!(name.contains(filter)))
+		{
+			return;
+		}
+
+		Path input = repeated(Paths.get("./words"), COPIES);
+		SearchPlan plan = SearchPlan.compile("contains='a'", null);
+		byte[] separator = System.lineSeparator().getBytes();
+
+		try
+		{
+			for (int limit : new int[]{ 1, 3, 100 })
+			{
+				SearchOptions options = SearchOptions.parse(new String[]{ "--parallel=8", "--unordered", "--limit=" + limit });
+
+				for (int run = 0; run < RUNS; run++)
+				{
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					long matched;
+
+					try (OutputSink out = new OutputSink(Channels.newChannel(bytes), FlushPolicy.FULL, OutputSink.DEFAULT_BUFFER))
+					{
+						matched = StringSearch.search(input.toString(), plan, options, null, out);
+
+						// chunks still running when search returns must not write either
+						sleep(50);
+					}
+
+					long printed = count(bytes.toByteArray(), separator[separator.length - 1]);
+
+					if ((printed != limit) || (matched != limit))
+					{
+						fail(name, "--limit=" + limit + " printed " + printed + " lines, counted " + matched);
+						return;
+					}
+				}
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists(input);
+		}
+
+		pass(name);
+	}
+
+	/**
+	 * Queries that group their disjunctions differently must not share
+	 * a result cache key, while clause order alone must not matter
+	 */
+	static void cacheKeyGrouping()
+	{
+		String name = "cache.key.grouping";
+
+		if (!(name.contains(filter)))
+		{
+			return;
+		}
+
+		String grouped = ResultCache.canonical(SearchPlan.compile("(length=5|matches='q')&matches='z'", null));
+		String ungrouped = ResultCache.canonical(SearchPlan.compile("length=5|matches='q'&matches='z'", null));
+		String reordered = ResultCache.canonical(SearchPlan.compile("matches='z'&(length=5|matches='q')", null));
+
+		if (grouped.equals(ungrouped))
+		{
+			fail(name, "both groupings have the key " + grouped);
+		}
+		else if (!(grouped.equals(reordered)))
+		{
+			fail(name, "reordering the clauses changed the key from " + grouped + " to " + reordered);
+		}
+		else
+		{
+			pass(name);
+		}
+	}
+
+	/**
+	 * Writes copies concatenated copies of file to a temporary file
+	 *
+	 * @param file
+	 * @param copies
+	 * @return path
+	 */
+	static Path repeated(Path file, int copies) throws IOException
+	{
+		byte[] bytes = Files.readAllBytes(file);
+		Path path = Files.createTempFile("stringsearch-checks", ".txt");
+
+		try (OutputStream out = Files.newOutputStream(path))
+		{
+			for (int i = 0; i < copies; i++)
+			{
+				out.write(bytes);
+			}
+		}
+
+		return path;
+	}
+
+	static void pass(String name)
+	{
+		System.out.printf("%-40s ok%n", name);
+	}
+
+	static void fail(String name, String reason)
+	{
+		System.out.printf("%-40s FAILED: %s%n", name, reason);
+		failures++;
+	}
+
+	private static void sleep(long millis)
+	{
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static long count(byte[] bytes, byte b)
+	{
+		long count = 0;
+
+		for (byte each : bytes)
+		{
+			if (each == b)
+			{
+				count++;
+			}
+		}
+
+		return count;
+	}
+}